@@ -75,9 +75,11 @@ public class Bot implements Defer.Callable<Void> {
     }
     
     public static void pickup(GameUI gui, String filter, int limit) {
-	List<Target> targets = gui.ui.sess.glob.oc.stream()
+	OCache oc = gui.ui.sess.glob.oc;
+	Gob player = oc.getgob(gui.plid);
+	if(player == null) {return;}
+	List<Target> targets = oc.within(player.rc, CFG.AUTO_PICK_RADIUS.get()).stream()
 	    .filter(startsWith(filter))
-	    .filter(gob -> distanceToPlayer(gob) <= CFG.AUTO_PICK_RADIUS.get())
 	    .sorted(byDistance)
 	    .limit(limit)
 	    .map(Target::new)
@@ -100,10 +102,8 @@ public class Bot implements Defer.Callable<Void> {
     }
     
     public static void selectFlower(GameUI gui, long gobid, String option) {
-	List<Target> targets = gui.ui.sess.glob.oc.stream()
-	    .filter(gob -> gob.id == gobid)
-	    .map(Target::new)
-	    .collect(Collectors.toList());
+	Gob gob = gui.ui.sess.glob.oc.getgob(gobid);
+	List<Target> targets = gob != null ? Collections.singletonList(new Target(gob)) : Collections.emptyList();
 	
 	start(new Bot(targets, Target::rclick, selectFlower(option)), gui.ui);
     }
@@ -169,11 +169,6 @@ public class Bot implements Defer.Callable<Void> {
 	};
     }
     
-    private static double distanceToPlayer(Gob gob) {
-	Gob p = gob.glob.oc.getgob(gob.glob.sess.ui.gui.plid);
-	return p.rc.dist(gob.rc);
-    }
-    
     public static Comparator<Gob> byDistance = (o1, o2) -> {
 	try {
 	    Gob p = o1.glob.oc.getgob(o1.glob.sess.ui.gui.plid);
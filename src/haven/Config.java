@@ -44,6 +44,9 @@ public class Config {
     public static URL resurl = geturl("haven.resurl", "http://game.havenandhearth.com/res/");
     public static URL screenurl = geturl("haven.screenurl", "http://game.havenandhearth.com/mt/ss");
     public static URL cachebase = geturl("haven.cachebase", "http://game.havenandhearth.com/render/");
+    public static String rescache = getprop("haven.rescache", "dir");
+    public static boolean mappack = getprop("haven.mappack", "off").equals("on");
+    public static boolean lazyres = getprop("haven.lazyres", "off").equals("on");
     public static URL mapbase = geturl("haven.mapbase", "http://game.havenandhearth.com/hres/");
     public static boolean dbtext = getprop("haven.dbtext", "off").equals("on");
     public static boolean bounddb = getprop("haven.bounddb", "off").equals("on");
@@ -58,6 +61,13 @@ public class Config {
     public static int mainport = getint("haven.mainport", 1870);
     public static int authport = getint("haven.authport", 1871);
     public static boolean softres = getprop("haven.softres", "on").equals("on");
+    public static int resfetchers = getint("haven.resfetchers", 4);
+    public static int mapexport = getint("haven.mapexport", 1);
+    public static int resrecord = getint("haven.resrecord", 120);
+    public static int reswarm = getint("haven.reswarm", 2000);
+    public static int nettomb = getint("haven.nettomb", 30);
+    public static boolean niorecv = getprop("haven.niorecv", "on").equals("on");
+    public static String netcap = getprop("haven.netcap", null);
     public static Double uiscale = getfloat("haven.uiscale", null);
     public static byte[] authck = null;
     public static String prefspec = "hafen";
@@ -233,6 +233,12 @@ public class Defer extends ThreadGroup {
 		    this.prio = prio;
 	    }
 	}
+
+	public void setprio(int prio) {
+	    synchronized(this) {
+		this.prio = prio;
+	    }
+	}
     }
 
     private static final AtomicInteger threadno = new AtomicInteger(0);
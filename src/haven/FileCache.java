@@ -84,6 +84,14 @@ public class FileCache implements ResCache {
     public InputStream fetch(String name) throws IOException {
 	return(new FileInputStream(forres(name)));
     }
+
+    public boolean remove(String name) throws IOException {
+	File path = forres(name);
+	if(!path.exists())
+	    throw(new FileNotFoundException(name));
+	path.delete();
+	return(true);
+    }
     
     public String toString() {
 	return("FileCache(" + base + ")");
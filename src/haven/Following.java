@@ -41,11 +41,21 @@ public class Following extends Moving {
 	this.xfname = xfname;
     }
 
+    private Coord3f cached = null;
+    private int cframe;
     public Coord3f getc() {
+	int frame = gob.glob.oc.motion.frame;
+	Coord3f ret = cached;
+	if((ret != null) && (cframe == frame))
+	    return(ret);
 	Gob tgt = gob.glob.oc.getgob(this.tgt);
 	if(tgt == null)
-	    return(gob.getrc());
-	return(tgt.getc());
+	    ret = gob.getrc();
+	else
+	    ret = tgt.getc();
+	cframe = frame;
+	cached = ret;
+	return(ret);
     }
 
     private double lastv = 0.0;
@@ -39,7 +39,11 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Sk
     public long id;
     public final Glob glob;
     private boolean disposed = false;
-    final Map<Class<? extends GAttrib>, GAttrib> attr = new HashMap<Class<? extends GAttrib>, GAttrib>();
+    /* Attributes are indexed by a per-class slot number (see
+     * attrslot()) and replaced copy-on-write, so that getattr() can
+     * read them without locking. Writers synchronize on attrmon. */
+    private volatile GAttrib[] attrs = new GAttrib[0];
+    private final Object attrmon = new Object();
     public final Collection<Overlay> ols = new ArrayList<Overlay>();
     public final Collection<RenderTree.Slot> slots = new ArrayList<>(1);
     private final Collection<SetupMod> setupmods = new ArrayList<>();
@@ -221,16 +225,11 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Sk
 	this(glob, c, -1);
     }
     
-    private Map<Class<? extends GAttrib>, GAttrib> cloneattrs() {
-	synchronized (this.attr) {
-	    return new HashMap<>(this.attr);
-	}
-    }
-    
     public void ctick(double dt) {
-	Map<Class<? extends GAttrib>, GAttrib> attr = cloneattrs();
-	for(GAttrib a : attr.values())
-	    a.ctick(dt);
+	for(GAttrib a : attrs) {
+	    if(a != null)
+		a.ctick(dt);
+	}
 	loadrattr();
 	for(Iterator<Overlay> i = ols.iterator(); i.hasNext();) {
 	    Overlay ol = i.next();
@@ -335,9 +334,10 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Sk
     }
     
     public void tick() {
-	Map<Class<? extends GAttrib>, GAttrib> attr = cloneattrs();
-	for (GAttrib a : attr.values())
-	    a.tick();
+	for(GAttrib a : attrs) {
+	    if(a != null)
+		a.tick();
+	}
 	loadrattr();
     }
     
@@ -357,9 +357,10 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Sk
 	    disposed = true;
 	    removalLock.notifyAll();
 	}
-	Map<Class<? extends GAttrib>, GAttrib> attr = cloneattrs();
-	for(GAttrib a : attr.values())
-	    a.dispose();
+	for(GAttrib a : attrs) {
+	    if(a != null)
+		a.dispose();
+	}
 	for(ResAttr.Cell rd : rdata) {
 	    if(rd.attr != null)
 		rd.attr.dispose();
@@ -376,6 +377,8 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Sk
 	    m.move(c);
 	this.rc = c;
 	this.a = a;
+	if(glob != null)
+	    glob.oc.moved(this);
     }
 
     public Coord3f getc() {
@@ -396,27 +399,50 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Sk
 	return(tile.drawstate(glob, pc));
     }
 
-    private Class<? extends GAttrib> attrclass(Class<? extends GAttrib> cl) {
+    private static Class<?> attrclass(Class<?> cl) {
 	while(true) {
 	    Class<?> p = cl.getSuperclass();
-	    if(p == GAttrib.class)
+	    if((p == GAttrib.class) || (p == null))
 		return(cl);
-	    cl = p.asSubclass(GAttrib.class);
+	    cl = p;
 	}
     }
 
-    public <C extends GAttrib> C getattr(Class<C> c) {
-	synchronized (attr) {
-	    GAttrib attr = this.attr.get(attrclass(c));
-	    if(!c.isInstance(attr))
-		return (null);
-	    return (c.cast(attr));
-	}
+    private static int nextslot = 0;
+    private static final ClassValue<Integer> attrslots = new ClassValue<Integer>() {
+	    protected Integer computeValue(Class<?> cl) {
+		Class<?> ac = attrclass(cl);
+		if(ac != cl)
+		    return(attrslots.get(ac));
+		synchronized(attrslots) {
+		    return(nextslot++);
+		}
+	    }
+	};
+
+    /* Subclasses share the slot of their topmost class below GAttrib,
+     * just as the attribute class used to key the attribute map. */
+    public static int attrslot(Class<? extends GAttrib> cl) {
+	return(attrslots.get(cl));
     }
 
-    private void setattr(Class<? extends GAttrib> ac, GAttrib a) {
-	synchronized (attr) {
-	    GAttrib prev = attr.remove(ac);
+    private static final int drawslot = attrslot(Drawable.class);
+
+    public <C extends GAttrib> C getattr(Class<C> c) {
+	int slot = attrslots.get(c);
+	GAttrib[] attrs = this.attrs;
+	if(slot >= attrs.length)
+	    return(null);
+	GAttrib attr = attrs[slot];
+	if(!c.isInstance(attr))
+	    return(null);
+	return(c.cast(attr));
+    }
+
+    private void setattr(int slot, GAttrib a) {
+	synchronized(attrmon) {
+	    GAttrib[] cur = this.attrs;
+	    GAttrib prev = (slot < cur.length) ? cur[slot] : null;
 	    if(prev != null) {
 		if((prev instanceof RenderTree.Node) && (prev.slots != null))
 		    RUtils.multirem(new ArrayList<>(prev.slots));
@@ -428,10 +454,8 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Sk
 		    try {
 			RUtils.multiadd(this.slots, (RenderTree.Node) a);
 		    } catch (Loading l) {
-			if(prev instanceof RenderTree.Node) {
+			if(prev instanceof RenderTree.Node)
 			    RUtils.multiadd(this.slots, (RenderTree.Node) prev);
-			    attr.put(ac, prev);
-			}
 			if(prev instanceof SetupMod)
 			    setupmods.add((SetupMod) prev);
 			throw (l);
@@ -439,22 +463,26 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Sk
 		}
 		if(a instanceof SetupMod)
 		    setupmods.add((SetupMod) a);
-		attr.put(ac, a);
+	    }
+	    if((a != null) || (prev != null)) {
+		GAttrib[] nattrs = Arrays.copyOf(cur, Math.max(cur.length, slot + 1));
+		nattrs[slot] = a;
+		this.attrs = nattrs;
 	    }
 	    if(prev != null)
 		prev.dispose();
-	    if(ac == Drawable.class) {
+	    if(slot == drawslot) {
 		drawableUpdated();
 	    }
 	}
     }
 
     public void setattr(GAttrib a) {
-	setattr(attrclass(a.getClass()), a);
+	setattr(attrslots.get(a.getClass()), a);
     }
 
     public void delattr(Class<? extends GAttrib> c) {
-	setattr(attrclass(c), null);
+	setattr(attrslots.get(c), null);
     }
 
     private Class<? extends ResAttr> rattrclass(Class<? extends ResAttr> cl) {
@@ -631,8 +659,7 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Sk
 	    if(ol.slots != null)
 		slot.add(ol);
 	}
-	Map<Class<? extends GAttrib>, GAttrib> attr = cloneattrs();
-	for(GAttrib a : attr.values()) {
+	for(GAttrib a : attrs) {
 	    if(a instanceof RenderTree.Node)
 		slot.add((RenderTree.Node)a);
 	}
@@ -888,4 +915,56 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Sk
     }
     
     public final Placed placed = new Placed();
+
+    /* Times the per-frame getattr() pattern of getc() and gtick()
+     * against the synchronized class-keyed map it replaced. */
+    public static void main(String[] args) {
+	int n = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+	int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+	Gob[] gobs = new Gob[n];
+	List<Map<Class<? extends GAttrib>, GAttrib>> maps = new ArrayList<>();
+	for(int i = 0; i < n; i++) {
+	    Gob gob = gobs[i] = new Gob(null, Coord2d.z, i);
+	    if((i % 3) == 0)
+		gob.setattr(new LinMove(gob, Coord2d.z, new Coord2d(1, 1)));
+	    if((i % 5) == 0)
+		gob.setattr(new DrawOffset(gob, Coord3f.o));
+	    Map<Class<? extends GAttrib>, GAttrib> map = new HashMap<>();
+	    for(GAttrib a : gob.attrs) {
+		if(a != null)
+		    map.put(attrclass(a.getClass()).asSubclass(GAttrib.class), a);
+	    }
+	    maps.add(map);
+	}
+	Class<?>[] probe = {Moving.class, Drawable.class, DrawOffset.class, Moving.class};
+	for(int pass = 0; pass < 3; pass++) {
+	    long hits = 0, st = System.nanoTime();
+	    for(int r = 0; r < rounds; r++) {
+		for(Map<Class<? extends GAttrib>, GAttrib> map : maps) {
+		    for(Class<?> c : probe) {
+			synchronized(map) {
+			    GAttrib a = map.get(attrclass(c));
+			    if(c.isInstance(a))
+				hits++;
+			}
+		    }
+		}
+	    }
+	    double old = (System.nanoTime() - st) * 1e-9;
+	    long hits2 = 0;
+	    st = System.nanoTime();
+	    for(int r = 0; r < rounds; r++) {
+		for(Gob gob : gobs) {
+		    if(gob.getattr(Moving.class) != null) hits2++;
+		    if(gob.getattr(Drawable.class) != null) hits2++;
+		    if(gob.getattr(DrawOffset.class) != null) hits2++;
+		    if(gob.getattr(Moving.class) != null) hits2++;
+		}
+	    }
+	    double nw = (System.nanoTime() - st) * 1e-9;
+	    double lookups = (double)n * rounds * probe.length;
+	    System.err.printf("map %.1f ns/lookup, slots %.1f ns/lookup (%d/%d hits)\n",
+			      old * 1e9 / lookups, nw * 1e9 / lookups, hits, hits2);
+	}
+    }
 }
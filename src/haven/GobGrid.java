@@ -0,0 +1,250 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/* Uniform grid over the world positions (Gob.rc) of the gobs in an
+ * OCache, so that range and nearest-neighbour queries need not scan
+ * every object. Predicates passed to the queries are always invoked
+ * without the grid lock held, since they commonly lock the gob
+ * itself while the gob lock is held when moving it. */
+public class GobGrid {
+    public static final double CELL = 11 * 10;
+    private final Map<Coord, List<Gob>> cells = new HashMap<>();
+    private final Map<Gob, Coord> filed = new IdentityHashMap<>();
+
+    public static Coord cellof(Coord2d c) {
+	return(new Coord((int)Math.floor(c.x / CELL), (int)Math.floor(c.y / CELL)));
+    }
+
+    private void file(Gob gob, Coord cc) {
+	cells.computeIfAbsent(cc, k -> new ArrayList<>(4)).add(gob);
+	filed.put(gob, cc);
+    }
+
+    private void unfile(Gob gob, Coord cc) {
+	List<Gob> cell = cells.get(cc);
+	if(cell != null) {
+	    cell.remove(gob);
+	    if(cell.isEmpty())
+		cells.remove(cc);
+	}
+    }
+
+    public synchronized void add(Gob gob) {
+	Coord cc = cellof(gob.rc);
+	Coord pc = filed.get(gob);
+	if(pc != null) {
+	    if(pc.equals(cc))
+		return;
+	    unfile(gob, pc);
+	}
+	file(gob, cc);
+    }
+
+    public synchronized void remove(Gob gob) {
+	Coord pc = filed.remove(gob);
+	if(pc != null)
+	    unfile(gob, pc);
+    }
+
+    /* Only gobs already added are tracked; moves of unregistered
+     * (local, or not yet added) gobs are ignored. */
+    public synchronized void moved(Gob gob) {
+	Coord pc = filed.get(gob);
+	if(pc == null)
+	    return;
+	Coord cc = cellof(gob.rc);
+	if(!pc.equals(cc)) {
+	    unfile(gob, pc);
+	    file(gob, cc);
+	}
+    }
+
+    public synchronized int size() {
+	return(filed.size());
+    }
+
+    private synchronized void collect(Coord ul, Coord br, List<Gob> buf) {
+	for(int y = ul.y; y <= br.y; y++) {
+	    for(int x = ul.x; x <= br.x; x++) {
+		List<Gob> cell = cells.get(new Coord(x, y));
+		if(cell != null)
+		    buf.addAll(cell);
+	    }
+	}
+    }
+
+    public List<Gob> within(Coord2d c, double r) {
+	List<Gob> ret = new ArrayList<>();
+	collect(cellof(c.sub(r, r)), cellof(c.add(r, r)), ret);
+	double r2 = r * r;
+	for(Iterator<Gob> i = ret.iterator(); i.hasNext();) {
+	    Coord2d gc = i.next().rc;
+	    double dx = gc.x - c.x, dy = gc.y - c.y;
+	    if((dx * dx) + (dy * dy) > r2)
+		i.remove();
+	}
+	return(ret);
+    }
+
+    /* The area is in world units, inclusive of ul and exclusive of br. */
+    public List<Gob> inArea(Area a) {
+	List<Gob> ret = new ArrayList<>();
+	if(!a.positive())
+	    return(ret);
+	collect(cellof(new Coord2d(a.ul)), cellof(new Coord2d(a.br)), ret);
+	for(Iterator<Gob> i = ret.iterator(); i.hasNext();) {
+	    Coord2d gc = i.next().rc;
+	    if((gc.x < a.ul.x) || (gc.y < a.ul.y) || (gc.x >= a.br.x) || (gc.y >= a.br.y))
+		i.remove();
+	}
+	return(ret);
+    }
+
+    /* The largest ring around cc that holds any cell, or -1 if empty. */
+    private synchronized int extent(Coord cc) {
+	int ret = -1;
+	for(Coord o : cells.keySet())
+	    ret = Math.max(ret, cc.manhattan2(o));
+	return(ret);
+    }
+
+    /* Lower bound of the distance from c to anything in ring r or
+     * beyond around cell cc. */
+    private static double ringdist(Coord2d c, Coord cc, int r) {
+	if(r == 0)
+	    return(0);
+	double ret = c.x - ((cc.x - r + 1) * CELL);
+	ret = Math.min(ret, ((cc.x + r) * CELL) - c.x);
+	ret = Math.min(ret, c.y - ((cc.y - r + 1) * CELL));
+	ret = Math.min(ret, ((cc.y + r) * CELL) - c.y);
+	return(ret);
+    }
+
+    private synchronized void ring(Coord cc, int r, List<Gob> buf) {
+	if(r == 0) {
+	    collect(cc, cc, buf);
+	    return;
+	}
+	collect(cc.add(-r, -r), cc.add(r, -r), buf);
+	collect(cc.add(-r, r), cc.add(r, r), buf);
+	collect(cc.add(-r, 1 - r), cc.add(-r, r - 1), buf);
+	collect(cc.add(r, 1 - r), cc.add(r, r - 1), buf);
+    }
+
+    /* Returns up to k gobs matching the filter, ordered by distance
+     * from c. Rings of cells are searched outwards until no unsearched
+     * cell can hold anything closer than the k:th best match. */
+    public List<Gob> nearest(Coord2d c, int k, Predicate<? super Gob> filter) {
+	List<Gob> ret = new ArrayList<>();
+	Coord cc = cellof(c);
+	int rmax = extent(cc);
+	if(k <= 0)
+	    return(ret);
+	PriorityQueue<Pair<Double, Gob>> best = new PriorityQueue<>((a, b) -> Double.compare(b.a, a.a));
+	List<Gob> buf = new ArrayList<>();
+	for(int r = 0; r <= rmax; r++) {
+	    if((best.size() >= k) && (best.peek().a <= ringdist(c, cc, r)))
+		break;
+	    buf.clear();
+	    ring(cc, r, buf);
+	    for(Gob gob : buf) {
+		double d = gob.rc.dist(c);
+		if((best.size() >= k) && (d >= best.peek().a))
+		    continue;
+		if((filter != null) && !filter.test(gob))
+		    continue;
+		best.add(new Pair<>(d, gob));
+		if(best.size() > k)
+		    best.poll();
+	    }
+	}
+	while(!best.isEmpty())
+	    ret.add(best.poll().b);
+	Collections.reverse(ret);
+	return(ret);
+    }
+
+    /* Compares the index against the stream scans it replaces, for a
+     * uniform random scattering of gobs over a few grids. */
+    public static void main(String[] args) {
+	int n = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+	int nq = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+	double span = (args.length > 2) ? Double.parseDouble(args[2]) : 11 * 100 * 3;
+	double rad = 11 * 20;
+	Random rnd = new Random(1);
+	GobGrid grid = new GobGrid();
+	List<Gob> all = new ArrayList<>();
+	for(int i = 0; i < n; i++) {
+	    Gob gob = new Gob(null, new Coord2d(rnd.nextDouble() * span, rnd.nextDouble() * span), i);
+	    all.add(gob);
+	    grid.add(gob);
+	}
+	Coord2d[] qs = new Coord2d[nq];
+	for(int i = 0; i < nq; i++)
+	    qs[i] = new Coord2d(rnd.nextDouble() * span, rnd.nextDouble() * span);
+	for(int pass = 0; pass < 3; pass++) {
+	    long found = 0, st = System.nanoTime();
+	    for(Coord2d q : qs)
+		found += all.stream().filter(g -> g.rc.dist(q) <= rad).count();
+	    double scan = (System.nanoTime() - st) * 1e-9;
+	    long found2 = 0;
+	    st = System.nanoTime();
+	    for(Coord2d q : qs)
+		found2 += grid.within(q, rad).size();
+	    double idx = (System.nanoTime() - st) * 1e-9;
+	    System.err.printf("within:  scan %.3fs, grid %.3fs (%d/%d hits)\n", scan, idx, found, found2);
+
+	    int k = 10, bad = 0;
+	    st = System.nanoTime();
+	    List<List<Gob>> sr = new ArrayList<>();
+	    for(Coord2d q : qs)
+		sr.add(all.stream().sorted(Comparator.comparingDouble(g -> g.rc.dist(q))).limit(k).collect(java.util.stream.Collectors.toList()));
+	    scan = (System.nanoTime() - st) * 1e-9;
+	    st = System.nanoTime();
+	    List<List<Gob>> gr = new ArrayList<>();
+	    for(Coord2d q : qs)
+		gr.add(grid.nearest(q, k, null));
+	    idx = (System.nanoTime() - st) * 1e-9;
+	    for(int i = 0; i < nq; i++) {
+		if(!sr.get(i).equals(gr.get(i)))
+		    bad++;
+	    }
+	    System.err.printf("nearest: scan %.3fs, grid %.3fs (%d mismatches)\n", scan, idx, bad);
+
+	    st = System.nanoTime();
+	    for(Gob gob : all) {
+		gob.rc = gob.rc.add(rnd.nextDouble() * 22 - 11, rnd.nextDouble() * 22 - 11);
+		grid.moved(gob);
+	    }
+	    System.err.printf("moves:   %.3fs for %d\n", (System.nanoTime() - st) * 1e-9, n);
+	}
+    }
+}
@@ -375,11 +375,12 @@ public class HashDirCache implements ResCache {
 	    });
     }
 
-    public void remove(String name) throws IOException {
+    public boolean remove(String name) throws IOException {
 	File path = lookup(name, false);
 	if(path == null)
 	    throw(new FileNotFoundException(name));
 	path.delete();
+	return(true);
     }
 
     public String toString() {
@@ -38,7 +38,21 @@ public class Homing extends Moving {
 	this.v = v;
     }
     
+    private Coord3f cached = null;
+    private int cframe;
     public Coord3f getc() {
+	Motion motion = gob.glob.oc.motion;
+	int frame = motion.frame;
+	Coord3f ret = cached;
+	if((ret != null) && (cframe == frame))
+	    return(ret);
+	ret = getc0();
+	cframe = frame;
+	cached = ret;
+	return(ret);
+    }
+
+    private Coord3f getc0() {
 	Coord2d rc = gob.rc;
 	Coord2d tc = this.tc;
 	Gob tgt = gob.glob.oc.getgob(this.tgt);
@@ -63,6 +77,7 @@ public class Homing extends Moving {
     
     public void move(Coord2d c) {
 	dist = 0;
+	cached = null;
     }
     
     public void ctick(double dt) {
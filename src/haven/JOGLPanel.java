@@ -430,15 +430,26 @@ public class JOGLPanel extends GLCanvas implements Runnable, UIPanel, Console.Di
 	if((map != null) && (map.back != null)) {
 	    FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Camera: %s", map.camstats());
 	    FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Mapview: %s", map.stats());
+	    GameUI gui = map.getparent(GameUI.class);
+	    if((gui != null) && (gui.mapfile != null))
+		FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Mapfile: %s", gui.mapfile.file.wstats());
 	    // FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Click: Map: %s, Obj: %s", map.clmaplist.stats(), map.clobjlist.stats());
 	}
+	if(ui.sess != null)
+	    FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Net: %s", ui.sess.stats());
+	if(ui.sess != null)
+	    FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Map: %s", ui.sess.glob.map.stats());
+	if(ui.sess != null)
+	    FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Objs: %s", ui.sess.glob.oc.netstats());
 	if(ui.sess != null)
 	    FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Async: L %s, D %s", ui.sess.glob.loader.stats(), Defer.gstats());
 	else
 	    FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Async: D %s", Defer.gstats());
 	int rqd = Resource.local().qdepth() + Resource.remote().qdepth();
-	if(rqd > 0)
+	if(rqd > 0) {
 	    FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "RQ depth: %d (%d)", rqd, Resource.local().numloaded() + Resource.remote().numloaded());
+	    FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Res: L %s; R %s", Resource.local().stats(), Resource.remote().stats());
+	}
     }
 
     private void display(UI ui, GLRender buf) {
@@ -456,6 +467,7 @@ public class JOGLPanel extends GLCanvas implements Runnable, UIPanel, Console.Di
     }
 
     public void run() {
+	ResRecorder.framethread = Thread.currentThread();
 	Thread drawthread = new HackThread(this::renderloop, "Render thread");
 	drawthread.start();
 	try {
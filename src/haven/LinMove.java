@@ -28,9 +28,13 @@ package haven;
 
 public class LinMove extends Moving {
     public static final double MAXOVER = 0.5;
-    public Coord2d s, v;
-    public double t, lt, e;
-    public boolean ts = false;
+    public final Coord2d s, v;
+    /* Only authoritative while not registered with the Motion system;
+     * use t(), e(), sett() and sete() from the outside. */
+    double t, lt, e;
+    boolean ts = false;
+    int slot = -1;
+    volatile Coord3f cached = null;
 
     public LinMove(Gob gob, Coord2d s, Coord2d v) {
 	super(gob);
@@ -40,8 +44,15 @@ public class LinMove extends Moving {
 	this.e = Double.NaN;
     }
 
+    private Motion motion() {
+	return((gob.glob == null) ? null : gob.glob.oc.motion);
+    }
+
     public Coord3f getc() {
-	return(gob.glob.map.getzp(s.add(v.mul(t))));
+	Coord3f ret = cached;
+	if(ret != null)
+	    return(ret);
+	return(gob.glob.map.getzp(s.add(v.mul(t()))));
     }
 
     public double getv() {
@@ -49,6 +60,20 @@ public class LinMove extends Moving {
     }
 
     public void ctick(double dt) {
+	Motion motion = motion();
+	if(motion != null) {
+	    synchronized(motion) {
+		if(slot < 0) {
+		    ctick0(dt);
+		    motion.add(this);
+		}
+	    }
+	} else {
+	    ctick0(dt);
+	}
+    }
+
+    private void ctick0(double dt) {
 	if(!ts) {
 	    t += dt * 0.9;
 	    if(!Double.isNaN(e) && (t > e)) {
@@ -60,11 +85,37 @@ public class LinMove extends Moving {
 	}
     }
 
-    public void sett(double t) {
+    public double t() {
+	Motion motion = motion();
+	return((motion == null) ? t : motion.t(this));
+    }
+
+    public double e() {
+	Motion motion = motion();
+	return((motion == null) ? e : motion.e(this));
+    }
+
+    void sett0(double t) {
 	lt = t;
 	if(t > this.t) {
 	    this.t = t;
 	    ts = false;
 	}
     }
+
+    public void sett(double t) {
+	Motion motion = motion();
+	if(motion == null)
+	    sett0(t);
+	else
+	    motion.sett(this, t);
+    }
+
+    public void sete(double e) {
+	Motion motion = motion();
+	if(motion == null)
+	    this.e = e;
+	else
+	    motion.sete(this, e);
+    }
 }
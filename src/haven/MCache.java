@@ -27,6 +27,8 @@
 package haven;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.lang.ref.*;
 import haven.render.*;
@@ -49,12 +51,21 @@ public class MCache implements MapSource {
     private final Reference<Tiler>[] tiles = new Reference[256];
     private final Waitable.Queue gridwait = new Waitable.Queue();
     Map<Coord, Request> req = new HashMap<Coord, Request>();
-    Map<Coord, Grid> grids = new HashMap<Coord, Grid>();
+    Map<Coord, Grid> grids = new ConcurrentHashMap<Coord, Grid>();
     Session sess;
     Set<Overlay> ols = new HashSet<Overlay>();
     public int olseq = 0;
     public long lastupdate = 0;
     Map<Integer, Defrag> fragbufs = new TreeMap<Integer, Defrag>();
+    private final AtomicLong dseq = new AtomicLong(0);
+    private volatile GridIndex gindex = GridIndex.empty;
+    /* Held weakly, since threads outlive sessions, and a grid pins
+     * its whole session. */
+    private final ThreadLocal<WeakReference<Grid>> lastgrid = new ThreadLocal<>();
+    private Coord fcc = null;
+    private Area fview = null, farea = null;
+    private long groundwait = 0;
+    private double lastground = -1;
 
     public static class LoadingMap extends Loading {
 	public final Coord gc;
@@ -89,6 +100,51 @@ public class MCache implements MapSource {
 	}
     }
 
+    /* Copy-on-write open-addressed table from packed grid
+     * coordinates to grids, for lookups that neither lock nor
+     * allocate. It is rebuilt under the grids lock whenever the set
+     * of grids changes, which is rare. */
+    private static class GridIndex {
+	static final GridIndex empty = new GridIndex(Collections.emptyList());
+	final long[] keys;
+	final Grid[] vals;
+
+	GridIndex(Collection<Grid> grids) {
+	    int sz = 4;
+	    while(sz < grids.size() * 2)
+		sz <<= 1;
+	    keys = new long[sz];
+	    vals = new Grid[sz];
+	    for(Grid g : grids) {
+		long k = key(g.gc.x, g.gc.y);
+		int i = hash(k) & (sz - 1);
+		while(vals[i] != null)
+		    i = (i + 1) & (sz - 1);
+		keys[i] = k;
+		vals[i] = g;
+	    }
+	}
+
+	static long key(int x, int y) {
+	    return((((long)x) << 32) | (y & 0xffffffffL));
+	}
+
+	static int hash(long k) {
+	    long h = k * 0x9e3779b97f4a7c15L;
+	    return((int)(h ^ (h >>> 32)));
+	}
+
+	Grid get(int x, int y) {
+	    long k = key(x, y);
+	    int m = keys.length - 1;
+	    for(int i = hash(k) & m; vals[i] != null; i = (i + 1) & m) {
+		if(keys[i] == k)
+		    return(vals[i]);
+	    }
+	    return(null);
+	}
+    }
+
     private static class Request {
 	private long lastreq = 0;
 	private int reqs = 0;
@@ -129,6 +185,8 @@ public class MCache implements MapSource {
 	public int seq = -1;
 	public String mnm;
 	private int olseq = -1;
+	private long dseq = 0;
+	private volatile boolean removed = false;
 	private final Cut cuts[];
 	private Flavobjs[] fo = new Flavobjs[cutn.x * cutn.y];
 
@@ -136,6 +194,7 @@ public class MCache implements MapSource {
 	    MapMesh mesh;
 	    Defer.Future<MapMesh> dmesh;
 	    RenderTree.Node[] ols;
+	    boolean stale;
 	}
 
 	private class Flavobj extends Gob {
@@ -257,10 +316,13 @@ public class MCache implements MapSource {
 
 	public MapMesh getcut(Coord cc) {
 	    Cut cut = geticut(cc);
+	    if((cut.dmesh == null) && ((cut.mesh == null) || cut.stale))
+		buildcut(cc, true);
 	    if(cut.dmesh != null) {
-		if(cut.dmesh.done() || (cut.mesh == null)) {
+		int prio = cutprio(gc.mul(cutn).add(cc));
+		if(cut.dmesh.done(prio) || (cut.mesh == null)) {
 		    MapMesh old = cut.mesh;
-		    cut.mesh = cut.dmesh.get();
+		    cut.mesh = cut.dmesh.get(prio);
 		    cut.dmesh = null;
 		    cut.ols = null;
 		    if(old != null)
@@ -270,18 +332,21 @@ public class MCache implements MapSource {
 	    return(cut.mesh);
 	}
 	
+	private void dropols(Cut cut) {
+	    if(cut.ols != null) {
+		for(RenderTree.Node r : cut.ols) {
+		    if(r instanceof Disposable)
+			((Disposable)r).dispose();
+		}
+	    }
+	    cut.ols = null;
+	}
+
 	public RenderTree.Node getolcut(int ol, Coord cc) {
 	    int nseq = MCache.this.olseq;
 	    if(this.olseq != nseq) {
-		for(int i = 0; i < cutn.x * cutn.y; i++) {
-		    if(cuts[i].ols != null) {
-			for(RenderTree.Node r : cuts[i].ols) {
-			    if(r instanceof Disposable)
-				((Disposable)r).dispose();
-			}
-		    }
-		    cuts[i].ols = null;
-		}
+		for(int i = 0; i < cutn.x * cutn.y; i++)
+		    dropols(cuts[i]);
 		this.olseq = nseq;
 	    }
 	    Cut cut = geticut(cc);
@@ -290,9 +355,20 @@ public class MCache implements MapSource {
 	    return(cut.ols[ol]);
 	}
 	
-	private void buildcut(final Coord cc) {
+	/* Cuts outside the area around the current map focus are
+	 * only marked stale, to be built once they are asked for. */
+	private void buildcut(final Coord cc, boolean force) {
 	    final Cut cut = geticut(cc);
 	    Defer.Future<?> prev = cut.dmesh;
+	    Coord gcc = gc.mul(cutn).add(cc);
+	    if(!force && (farea != null) && !farea.contains(gcc)) {
+		cut.dmesh = null;
+		cut.stale = true;
+		if(prev != null)
+		    prev.cancel();
+		return;
+	    }
+	    cut.stale = false;
 	    cut.dmesh = Defer.later(new Defer.Callable<MapMesh>() {
 		    public MapMesh call() {
 			Random rnd = new Random(id);
@@ -305,10 +381,38 @@ public class MCache implements MapSource {
 			return("Building map...");
 		    }
 		});
+	    cut.dmesh.setprio(cutprio(gcc));
 	    if(prev != null)
 		prev.cancel();
 	}
 
+	private void buildcut(Coord cc) {
+	    buildcut(cc, false);
+	}
+
+	/* Must be called with grids locked. */
+	private void refocus() {
+	    Coord gcc = new Coord();
+	    for(int i = 0; i < cuts.length; i++) {
+		Cut cut = cuts[i];
+		if(cut.dmesh == null)
+		    continue;
+		gcc.x = (gc.x * cutn.x) + (i % cutn.x);
+		gcc.y = (gc.y * cutn.y) + (i / cutn.x);
+		if(farea.contains(gcc)) {
+		    cut.dmesh.setprio(cutprio(gcc));
+		} else if(!cut.dmesh.done(Integer.MIN_VALUE)) {
+		    cut.dmesh.cancel();
+		    cut.dmesh = null;
+		    cut.stale = true;
+		}
+	    }
+	}
+
+	boolean hasmesh(int cx, int cy) {
+	    return(cuts[cx + (cy * cutn.x)].mesh != null);
+	}
+
 	public void ivneigh(Coord nc) {
 	    Coord cc = new Coord();
 	    for(cc.y = 0; cc.y < cutn.y; cc.y++) {
@@ -352,6 +456,7 @@ public class MCache implements MapSource {
 	}
 
 	public void dispose() {
+	    removed = true;
 	    for(Cut cut : cuts) {
 		if(cut.dmesh != null)
 		    cut.dmesh.cancel();
@@ -366,7 +471,10 @@ public class MCache implements MapSource {
 	    }
 	}
 
-	public void fill(Message msg) {
+	/* Decodes grid data into this grid's arrays only. This is done
+	 * on a detached grid, off any locks, which is then published
+	 * by MCache.publish(). */
+	private void decode(Message msg) {
 	    String mmname = msg.string().intern();
 	    if(mmname.equals(""))
 		mnm = null;
@@ -430,8 +538,69 @@ public class MCache implements MapSource {
 		    }
 		}
 	    }
-	    invalidate();
-	    seq++;
+	}
+
+	private void load(Grid from) {
+	    System.arraycopy(from.tiles, 0, tiles, 0, tiles.length);
+	    System.arraycopy(from.z, 0, z, 0, z.length);
+	    System.arraycopy(from.ol, 0, ol, 0, ol.length);
+	    id = from.id;
+	    mnm = from.mnm;
+	}
+
+	/* Takes over newly received data for this grid, rebuilding
+	 * only what it affects. Cut meshes are rebuilt where tiles or
+	 * heights changed within two tiles of them, since transitions
+	 * and surface normals look that far, which may include edge
+	 * cuts of neighbouring grids. Where only claim overlays
+	 * changed, just the overlay geometry of those cuts is dropped.
+	 * Must be called with grids locked. */
+	private void update(Grid from) {
+	    if(from.id != id) {
+		load(from);
+		invalidate();
+		return;
+	    }
+	    int dw = cutn.x + 2;
+	    boolean[] remesh = new boolean[dw * (cutn.y + 2)];
+	    boolean[] reol = new boolean[cuts.length];
+	    boolean any = false;
+	    for(int y = 0, i = 0; y < cmaps.y; y++) {
+		for(int x = 0; x < cmaps.x; x++, i++) {
+		    if((from.tiles[i] != tiles[i]) || (from.z[i] != z[i])) {
+			int cx1 = Utils.floordiv(x - 2, cutsz.x), cx2 = Utils.floordiv(x + 2, cutsz.x);
+			int cy1 = Utils.floordiv(y - 2, cutsz.y), cy2 = Utils.floordiv(y + 2, cutsz.y);
+			for(int cy = cy1; cy <= cy2; cy++) {
+			    for(int cx = cx1; cx <= cx2; cx++)
+				remesh[(cx + 1) + ((cy + 1) * dw)] = true;
+			}
+			any = true;
+		    }
+		    if(from.ol[i] != ol[i])
+			reol[(x / cutsz.x) + ((y / cutsz.y) * cutn.x)] = true;
+		}
+	    }
+	    load(from);
+	    if(any) {
+		for(int cy = -1; cy <= cutn.y; cy++) {
+		    for(int cx = -1; cx <= cutn.x; cx++) {
+			if(!remesh[(cx + 1) + ((cy + 1) * dw)])
+			    continue;
+			int nx = Utils.floordiv(cx, cutn.x), ny = Utils.floordiv(cy, cutn.y);
+			Grid g = ((nx == 0) && (ny == 0)) ? this : grids.get(gc.add(nx, ny));
+			if(g == null)
+			    continue;
+			Coord lc = new Coord(Utils.floormod(cx, cutn.x), Utils.floormod(cy, cutn.y));
+			g.buildcut(lc);
+			if(g == this)
+			    fo[lc.x + (lc.y * cutn.x)] = null;
+		    }
+		}
+	    }
+	    for(int i = 0; i < cuts.length; i++) {
+		if(reol[i])
+		    dropols(cuts[i]);
+	    }
 	}
     }
 
@@ -481,32 +650,54 @@ public class MCache implements MapSource {
 	}
     }
 
-    private Grid cached = null;
-    public Grid getgrid(Coord gc) {
-	synchronized(grids) {
-	    if((cached == null) || !cached.gc.equals(gc)) {
-		cached = grids.get(gc);
-		if(cached == null) {
-		    request(gc);
-		    throw(new LoadingMap(this, gc));
-		}
+    /* Must be called with grids locked. */
+    private void reindex() {
+	gindex = new GridIndex(grids.values());
+    }
+
+    public Grid getgrid(int gx, int gy) {
+	WeakReference<Grid> last = lastgrid.get();
+	Grid g = (last == null) ? null : last.get();
+	if((g == null) || g.removed || (g.gc.x != gx) || (g.gc.y != gy)) {
+	    g = gindex.get(gx, gy);
+	    if(g == null) {
+		Coord gc = new Coord(gx, gy);
+		request(gc);
+		throw(new LoadingMap(this, gc));
 	    }
-	    return(cached);
+	    lastgrid.set(new WeakReference<>(g));
 	}
+	return(g);
+    }
+
+    public Grid getgrid(Coord gc) {
+	return(getgrid(gc.x, gc.y));
+    }
+
+    public Grid getgridt(int tx, int ty) {
+	return(getgrid(Utils.floordiv(tx, cmaps.x), Utils.floordiv(ty, cmaps.y)));
     }
 
     public Grid getgridt(Coord tc) {
-	return(getgrid(tc.div(cmaps)));
+	return(getgridt(tc.x, tc.y));
+    }
+
+    public int gettile(int tx, int ty) {
+	Grid g = getgridt(tx, ty);
+	return(g.tiles[(tx - g.ul.x) + ((ty - g.ul.y) * cmaps.x)]);
     }
 
     public int gettile(Coord tc) {
-	Grid g = getgridt(tc);
-	return(g.gettile(tc.sub(g.ul)));
+	return(gettile(tc.x, tc.y));
+    }
+
+    public double getfz(int tx, int ty) {
+	Grid g = getgridt(tx, ty);
+	return(g.z[(tx - g.ul.x) + ((ty - g.ul.y) * cmaps.x)]);
     }
 
     public double getfz(Coord tc) {
-	Grid g = getgridt(tc);
-	return(g.getz(tc.sub(g.ul)));
+	return(getfz(tc.x, tc.y));
     }
 
     @Deprecated
@@ -516,11 +707,24 @@ public class MCache implements MapSource {
 
     public double getcz(double px, double py) {
 	double tw = tilesz.x, th = tilesz.y;
-	Coord ul = new Coord(Utils.floordiv(px, tw), Utils.floordiv(py, th));
+	int tx = Utils.floordiv(px, tw), ty = Utils.floordiv(py, th);
 	double sx = Utils.floormod(px, tw) / tw;
 	double sy = Utils.floormod(py, th) / th;
-	return(((1.0f - sy) * (((1.0f - sx) * getfz(ul)) + (sx * getfz(ul.add(1, 0))))) +
-	       (sy * (((1.0f - sx) * getfz(ul.add(0, 1))) + (sx * getfz(ul.add(1, 1))))));
+	double z00, z10, z01, z11;
+	Grid g = getgridt(tx, ty);
+	int gx = tx - g.ul.x, gy = ty - g.ul.y;
+	if((gx < cmaps.x - 1) && (gy < cmaps.y - 1)) {
+	    int i = gx + (gy * cmaps.x);
+	    z00 = g.z[i]; z10 = g.z[i + 1];
+	    z01 = g.z[i + cmaps.x]; z11 = g.z[i + cmaps.x + 1];
+	} else {
+	    z00 = g.z[gx + (gy * cmaps.x)];
+	    z10 = getfz(tx + 1, ty);
+	    z01 = getfz(tx, ty + 1);
+	    z11 = getfz(tx + 1, ty + 1);
+	}
+	return(((1.0f - sy) * (((1.0f - sx) * z00) + (sx * z10))) +
+	       (sy * (((1.0f - sx) * z01) + (sx * z11))));
     }
 
     public double getcz(Coord2d pc) {
@@ -554,6 +758,65 @@ public class MCache implements MapSource {
 	    return(getgrid(cc.div(cutn)).getcut(cc.mod(cutn)));
 	}
     }
+
+    /* Cuts are meshed nearest-first from the map focus, and those
+     * no longer in view are abandoned until asked for again. */
+    private static final int CUTPRIO = 5;
+    private int cutprio(Coord gcc) {
+	if(fcc == null)
+	    return(0);
+	return(CUTPRIO - Math.max(Math.abs(gcc.x - fcc.x), Math.abs(gcc.y - fcc.y)));
+    }
+
+    /* Called by the map view every frame with the cut under the
+     * camera and the area of cuts it displays. A jump of more than
+     * one cut (or the first call) counts as an arrival, and the time
+     * until the cuts around the focus have ground meshes is recorded
+     * in lastground. */
+    public void focus(Coord cc, Area view) {
+	synchronized(grids) {
+	    if((fcc == null) || !fcc.equals(cc) || !view.equals(fview)) {
+		if((fcc == null) || (Math.max(Math.abs(cc.x - fcc.x), Math.abs(cc.y - fcc.y)) > 1))
+		    groundwait = System.nanoTime();
+		fcc = cc;
+		fview = view;
+		farea = view.margin(1);
+		for(Grid g : grids.values())
+		    g.refocus();
+	    }
+	    if(groundwait != 0) {
+		for(int y = cc.y - 1; y <= cc.y + 1; y++) {
+		    for(int x = cc.x - 1; x <= cc.x + 1; x++) {
+			Grid g = gindex.get(Utils.floordiv(x, cutn.x), Utils.floordiv(y, cutn.y));
+			if((g == null) || !g.hasmesh(Utils.floormod(x, cutn.x), Utils.floormod(y, cutn.y)))
+			    return;
+		    }
+		}
+		lastground = (System.nanoTime() - groundwait) * 1e-9;
+		groundwait = 0;
+	    }
+	}
+    }
+
+    public String stats() {
+	synchronized(grids) {
+	    int pending = 0;
+	    for(Grid g : grids.values()) {
+		for(Grid.Cut cut : g.cuts) {
+		    if(cut.dmesh != null)
+			pending++;
+		}
+	    }
+	    String ground;
+	    if(groundwait != 0)
+		ground = String.format("waiting %.1fs", (System.nanoTime() - groundwait) * 1e-9);
+	    else if(lastground >= 0)
+		ground = String.format("%.2fs", lastground);
+	    else
+		ground = "-";
+	    return(String.format("%d grids, %d cuts pending, ground %s", grids.size(), pending, ground));
+	}
+    }
     
     public RenderTree.Node getfo(Coord cc) {
 	synchronized(grids) {
@@ -567,25 +830,50 @@ public class MCache implements MapSource {
 	}
     }
 
+    /* Grid data is inflated and decoded on the loader pool into a
+     * detached grid, so that neither the reader thread nor users of
+     * getgrid() wait for it, and several grids can be decoded at
+     * once. Publishing it is then only a short copy under the lock;
+     * should decodes of the same grid finish out of order, the
+     * older data is dropped. */
     public void mapdata2(Message msg) {
 	Coord c = msg.coord();
-	Grid g = null;
+	synchronized(req) {
+	    if(!req.containsKey(c))
+		return;
+	}
+	long dseq = this.dseq.incrementAndGet();
+	sess.glob.loader.defer(() -> {
+		Grid ng = new Grid(c);
+		ng.decode(msg);
+		publish(ng, dseq);
+	    }, null);
+	lastupdate = System.currentTimeMillis();
+    }
+
+    private void publish(Grid ng, long dseq) {
+	Grid g;
 	synchronized(grids) {
 	    synchronized(req) {
-		if(req.containsKey(c)) {
-		    g = grids.get(c);
-		    if(g == null) {
-			grids.put(c, g = new Grid(c));
-			cached = null;
-		    }
-		    g.fill(msg);
-		    req.remove(c);
-		    olseq++;
-		    gridwait.wnotify();
+		g = grids.get(ng.gc);
+		if(g == null) {
+		    if(!req.containsKey(ng.gc))
+			return;
+		    grids.put(ng.gc, g = ng);
+		    reindex();
+		    g.invalidate();
+		} else {
+		    if(g.dseq > dseq)
+			return;
+		    g.update(ng);
 		}
+		g.dseq = dseq;
+		g.seq++;
+		req.remove(ng.gc);
+		gridwait.wnotify();
 	    }
 	}
-	if(CFG.STORE_MAP.get() && g != null) {
+	if(CFG.STORE_MAP.get()) {
 	    MapDumper.dump(this, g);
 	}
 	lastupdate = System.currentTimeMillis();
@@ -666,9 +954,9 @@ public class MCache implements MapSource {
 		for(Grid g : grids.values())
 		    g.dispose();
 		grids.clear();
+		reindex();
 		req.clear();
 		MapDumper.newSession();
-		cached = null;
 	    }
 	    gridwait.wnotify();
 	}
@@ -691,7 +979,7 @@ public class MCache implements MapSource {
 		    if((gc.x < ul.x) || (gc.y < ul.y) || (gc.x > lr.x) || (gc.y > lr.y))
 			i.remove();
 		}
-		cached = null;
+		reindex();
 	    }
 	    gridwait.wnotify();
 	}
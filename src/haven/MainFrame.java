@@ -299,6 +299,8 @@ public class MainFrame extends java.awt.Frame implements Runnable, Console.Direc
 		throw(new Error(e));
 	    }
 	}
+	if(Config.reswarm > 0)
+	    ResRecorder.warm(Resource.remote(), Config.reswarm);
     }
     
     static {
@@ -400,6 +402,7 @@ public class MainFrame extends java.awt.Frame implements Runnable, Console.Direc
 	    f.mt.interrupt();
 	    return;
 	}
+	ResRecorder.finish();
 	dumplist(Resource.remote().loadwaited(), Config.loadwaited);
 	dumplist(Resource.remote().cached(), Config.allused);
 	if(ResCache.global != null) {
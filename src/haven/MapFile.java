@@ -28,17 +28,23 @@ package haven;
 
 import java.util.*;
 import java.util.concurrent.locks.*;
-import java.util.function.Function;
+import java.util.function.*;
+import java.util.stream.IntStream;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.*;
 import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.awt.image.WritableRaster;
+import java.awt.image.DataBufferByte;
 import haven.Defer.Future;
 import static haven.MCache.cmaps;
 
 public class MapFile {
     public static boolean debug = false;
     public final ResCache store;
+    public final MapPack pack;
     public final String filename;
     public final Collection<Long> knownsegs = new HashSet<>();
     public final Collection<Marker> markers = new ArrayList<>();
@@ -46,9 +52,17 @@ public class MapFile {
     public int markerseq = 0;
     public final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
-    public MapFile(ResCache store, String filename) {
+    public MapFile(ResCache store, String filename, MapPack pack) {
 	this.store = store;
 	this.filename = filename;
+	this.pack = pack;
+	synchronized(live) {
+	    live.put(this, Boolean.TRUE);
+	}
+    }
+
+    public MapFile(ResCache store, String filename) {
+	this(store, filename, null);
     }
 
     private void checklock() {
@@ -66,19 +80,125 @@ public class MapFile {
 	buf.append(datum);
 	return(buf.toString());
     }
+    /* In container storage, segments are kept together with their
+     * zoom grids, while grids, which move between segments as those
+     * are merged, are spread over a fixed set of buckets by ID. */
+    private static String bucket(String datum) {
+	int p = datum.indexOf('-');
+	if(p < 0)
+	    return("misc");
+	String rest = datum.substring(p + 1);
+	switch(datum.substring(0, p)) {
+	case "seg":
+	    return("s" + rest);
+	case "zgrid": case "rimg":
+	    return("s" + rest.substring(0, rest.indexOf('-')));
+	case "grid": case "gi":
+	    return(String.format("g%02x", Long.parseUnsignedLong(rest, 16) & 0x3f));
+	default:
+	    return("misc");
+	}
+    }
     private InputStream sfetch(String ctl, Object... args) throws IOException {
-	return(store.fetch(mangle(String.format(ctl, args))));
+	String datum = String.format(ctl, args);
+	if(pack == null)
+	    return(store.fetch(mangle(datum)));
+	String bucket = bucket(datum);
+	try {
+	    return(pack.fetch(bucket, datum));
+	} catch(FileNotFoundException e) {
+	    if(pack.migrated())
+		throw(e);
+	}
+	byte[] data;
+	try(InputStream fp = store.fetch(mangle(datum))) {
+	    data = Utils.readall(fp);
+	}
+	if(!pack.putIfAbsent(bucket, datum, data))
+	    return(pack.fetch(bucket, datum));
+	return(new ByteArrayInputStream(data));
     }
     private OutputStream sstore(String ctl, Object... args) throws IOException {
-	return(store.store(mangle(String.format(ctl, args))));
+	String datum = String.format(ctl, args);
+	if(pack == null)
+	    return(store.store(mangle(datum)));
+	return(pack.store(bucket(datum), datum));
+    }
+    private boolean sremove(String ctl, Object... args) throws IOException {
+	String datum = String.format(ctl, args);
+	if(pack == null)
+	    return(store.remove(mangle(datum)));
+	pack.remove(bucket(datum), datum);
+	return(true);
+    }
+
+    /* Rendered images are keyed by a stamp of the data they were
+     * rendered from, so stale ones need no explicit invalidation
+     * and are simply replaced when next rendered. */
+    public BufferedImage loadimg(long seg, int lvl, Coord sc, long stamp) {
+	InputStream fp;
+	try {
+	    fp = sfetch("rimg-%x-%d-%d-%d", seg, lvl, sc.x, sc.y);
+	} catch(FileNotFoundException e) {
+	    return(null);
+	} catch(IOException e) {
+	    Debug.log.printf("mapfile warning: error when locating image (%d, %d) in %x@%d: %s\n", sc.x, sc.y, seg, lvl, e);
+	    return(null);
+	}
+	try(StreamMessage data = new StreamMessage(fp)) {
+	    if(data.eom() || (data.uint8() != 1))
+		return(null);
+	    ZMessage z = new ZMessage(data);
+	    if(z.int64() != stamp)
+		return(null);
+	    Coord sz = z.coord();
+	    BufferedImage ret = TexI.mkbuf(sz);
+	    z.bytes(((DataBufferByte)ret.getRaster().getDataBuffer()).getData());
+	    return(ret);
+	} catch(Message.BinError e) {
+	    return(null);
+	}
+    }
+
+    public void saveimg(long seg, int lvl, Coord sc, long stamp, BufferedImage img) {
+	WritableRaster raster = img.getRaster();
+	if(!(raster.getDataBuffer() instanceof DataBufferByte) || (raster.getNumBands() != 4) ||
+	   (raster.getDataBuffer().getSize() != img.getWidth() * img.getHeight() * 4))
+	    return;
+	try(StreamMessage out = new StreamMessage(sstore("rimg-%x-%d-%d-%d", seg, lvl, sc.x, sc.y))) {
+	    out.adduint8(1);
+	    ZMessage z = new ZMessage(out);
+	    z.addint64(stamp);
+	    z.addcoord(new Coord(img.getWidth(), img.getHeight()));
+	    z.addbytes(((DataBufferByte)raster.getDataBuffer()).getData());
+	    z.finish();
+	} catch(IOException | StreamMessage.IOError e) {
+	    Debug.log.printf("mapfile warning: could not store image (%d, %d) in %x@%d: %s\n", sc.x, sc.y, seg, lvl, e);
+	}
+    }
+
+    private static long stampmix(long h, long v) {
+	h ^= v;
+	h *= 0x100000001b3L;
+	return(h ^ (h >>> 29));
     }
 
     public static MapFile load(ResCache store, String filename) {
-	MapFile file = new MapFile(store, filename);
+	MapPack pack = null;
+	if(Config.mappack) {
+	    try {
+		pack = MapPack.get(store + "/" + filename);
+	    } catch(IOException e) {
+		new Warning(e, "could not open map containers").issue();
+	    }
+	}
+	MapFile file = new MapFile(store, filename, pack);
 	InputStream fp;
 	try {
 	    fp = file.sfetch("index");
 	} catch(FileNotFoundException e) {
+	    if(pack != null)
+		file.migrate();
 	    return(file);
 	} catch(IOException e) {
 	    return(null);
@@ -91,6 +211,7 @@ public class MapFile {
 		for(int i = 0, no = data.int32(); i < no; i++) {
 		    Marker mark = loadmarker(data);
 		    file.markers.add(mark);
+		    file.markidx.add(mark);
 		    if(mark instanceof SMarker)
 			file.smarkers.put(((SMarker)mark).oid, (SMarker)mark);
 		}
@@ -102,9 +223,80 @@ public class MapFile {
 	    Debug.log.printf("mapfile warning: error when loading index: %s\n", e);
 	    return(null);
 	}
+	if((pack != null) && !pack.migrated())
+	    file.migrate();
 	return(file);
     }
 
+    private boolean migrate(String ctl, Object... args) {
+	try {
+	    sfetch(ctl, args).close();
+	    return(true);
+	} catch(FileNotFoundException e) {
+	    return(false);
+	} catch(IOException e) {
+	    Debug.log.printf("mapfile warning: error when migrating %s: %s\n", String.format(ctl, args), e);
+	    return(false);
+	}
+    }
+
+    private void migrate(long id) {
+	Segment seg = segments.get(id);
+	if(seg == null)
+	    return;
+	Collection<Coord> level = new ArrayList<>(seg.map.keySet());
+	for(Coord sc : level) {
+	    long gid = seg.map.get(sc);
+	    migrate("grid-%x", gid);
+	    migrate("gi-%x", gid);
+	}
+	for(int lvl = 1; !level.isEmpty() && (lvl < 30); lvl++) {
+	    Collection<Coord> zcs = new HashSet<>();
+	    for(Coord sc : level)
+		zcs.add(new Coord(sc.x & ~((1 << lvl) - 1), sc.y & ~((1 << lvl) - 1)));
+	    level = new ArrayList<>();
+	    for(Coord zc : zcs) {
+		if(migrate("zgrid-%x-%d-%d-%d", id, lvl, zc.x, zc.y))
+		    level.add(zc);
+	    }
+	}
+    }
+
+    /* Reading through to the per-entry store copies what is read
+     * into the containers, so a one-shot migration just reads
+     * everything reachable from the index, after which the
+     * per-entry store is no longer consulted. */
+    private void migrate() {
+	Thread th = new HackThread(() -> {
+		long start = System.currentTimeMillis();
+		Collection<Long> segs;
+		lock.readLock().lock();
+		try {
+		    segs = new ArrayList<>(knownsegs);
+		} finally {
+		    lock.readLock().unlock();
+		}
+		for(Long id : segs) {
+		    lock.readLock().lock();
+		    try {
+			migrate(id);
+		    } finally {
+			lock.readLock().unlock();
+		    }
+		}
+		pack.commit();
+		try {
+		    pack.setmigrated();
+		} catch(IOException e) {
+		    new Warning(e, "could not mark map as migrated").issue();
+		    return;
+		}
+		Debug.log.printf("mapfile: migrated %d segments in %.1fs\n", segs.size(), (System.currentTimeMillis() - start) * 0.001);
+	}, "Mapfile migrator");
+	th.setDaemon(true);
+	th.start();
+    }
+
     private void save() {
 	checklock();
 	OutputStream fp;
@@ -224,6 +416,8 @@ public class MapFile {
 			} else if(gdirty) {
 			    task = locked(MapFile.this::save, lock.readLock());
 			    gdirty = false;
+			} else if((pack != null) && pack.dirty()) {
+			    task = pack::commit;
 			} else {
 			    if(now - last > 10000) {
 				processor = null;
@@ -329,12 +523,91 @@ public class MapFile {
 	}
     }
 
+    /* Markers bucketed by segment and grid coordinate, so that
+     * drawing a map area need not look through all of them. Markers
+     * are mutable, so each is remembered with the bucket it was
+     * filed under. */
+    private static class MarkerIndex {
+	private final Map<Long, Map<Coord, List<Marker>>> segs = new HashMap<>();
+	private final Map<Marker, Pair<Long, Coord>> filed = new HashMap<>();
+
+	synchronized void add(Marker mark) {
+	    if(filed.containsKey(mark))
+		return;
+	    Pair<Long, Coord> key = new Pair<>(mark.seg, mark.tc.div(cmaps));
+	    filed.put(mark, key);
+	    segs.computeIfAbsent(key.a, k -> new HashMap<>()).computeIfAbsent(key.b, k -> new ArrayList<>(1)).add(mark);
+	}
+
+	synchronized void remove(Marker mark) {
+	    Pair<Long, Coord> key = filed.remove(mark);
+	    if(key == null)
+		return;
+	    Map<Coord, List<Marker>> seg = segs.get(key.a);
+	    List<Marker> bucket = seg.get(key.b);
+	    bucket.remove(mark);
+	    if(bucket.isEmpty()) {
+		seg.remove(key.b);
+		if(seg.isEmpty())
+		    segs.remove(key.a);
+	    }
+	}
+
+	synchronized boolean contains(Marker mark) {
+	    return(filed.containsKey(mark));
+	}
+
+	synchronized void update(Marker mark) {
+	    Pair<Long, Coord> key = filed.get(mark);
+	    if((key != null) && ((key.a != mark.seg) || !key.b.equals(mark.tc.div(cmaps)))) {
+		remove(mark);
+		add(mark);
+	    }
+	}
+
+	synchronized List<Marker> get(long segid, Area area) {
+	    Map<Coord, List<Marker>> seg = segs.get(segid);
+	    if(seg == null)
+		return(Collections.emptyList());
+	    List<Marker> ret = new ArrayList<>();
+	    Area ga = new Area(area.ul.div(cmaps), area.br.sub(1, 1).div(cmaps).add(1, 1));
+	    if(ga.area() <= seg.size()) {
+		for(Coord gc : ga) {
+		    List<Marker> bucket = seg.get(gc);
+		    if(bucket != null) {
+			for(Marker mark : bucket) {
+			    if(area.contains(mark.tc))
+				ret.add(mark);
+			}
+		    }
+		}
+	    } else {
+		for(Map.Entry<Coord, List<Marker>> ent : seg.entrySet()) {
+		    if(ga.contains(ent.getKey())) {
+			for(Marker mark : ent.getValue()) {
+			    if(area.contains(mark.tc))
+				ret.add(mark);
+			}
+		    }
+		}
+	    }
+	    return(ret);
+	}
+    }
+    private final MarkerIndex markidx = new MarkerIndex();
+
+    /* Returns the markers of a segment within an area of tiles. */
+    public List<Marker> markers(long seg, Area area) {
+	return(markidx.get(seg, area));
+    }
+
     public void add(Marker mark) {
 	lock.writeLock().lock();
 	try {
 	    if(markers.add(mark)) {
 		if(mark instanceof SMarker)
 		    smarkers.put(((SMarker)mark).oid, (SMarker)mark);
+		markidx.add(mark);
 		defersave();
 		markerseq++;
 	    }
@@ -349,6 +622,7 @@ public class MapFile {
 	    if(markers.remove(mark)) {
 		if(mark instanceof SMarker)
 		    smarkers.remove(((SMarker)mark).oid, (SMarker)mark);
+		markidx.remove(mark);
 		defersave();
 		markerseq++;
 	    }
@@ -360,7 +634,8 @@ public class MapFile {
     public void update(Marker mark) {
 	lock.readLock().lock();
 	try {
-	    if(markers.contains(mark)) {
+	    if(markidx.contains(mark)) {
+		markidx.update(mark);
 		defersave();
 		markerseq++;
 	    }
@@ -391,6 +666,16 @@ public class MapFile {
 	    this.mtime = mtime;
 	}
 
+	/* Identifies what a rendering of this grid would look like. */
+	public long stamp() {
+	    long h = stampmix(0xcbf29ce484222325L, mtime);
+	    for(TileInfo tinf : tilesets) {
+		h = stampmix(h, tinf.res.name.hashCode());
+		h = stampmix(h, (tinf.res.ver << 8) | tinf.prio);
+	    }
+	    return(h);
+	}
+
 	public int gettile(Coord c) {
 	    return(tiles[c.x + (c.y * cmaps.x)] & 0xff);
 	}
@@ -399,62 +684,97 @@ public class MapFile {
 	    return(zmap[c.x + (c.y * cmaps.x)]);
 	}
 
-	private BufferedImage tiletex(int t, BufferedImage[] texes, boolean[] cached) {
-	    if(!cached[t]) {
-		Resource r = null;
-		try {
-		    r = tilesets[t].res.loadsaved(Resource.remote());
-		} catch(Loading l) {
-		    throw(l);
-		} catch(Exception e) {
-		    Debug.log.printf("mapfile warning: could not load tileset resource %s(v%d): %s\n", tilesets[t].res.name, tilesets[t].res.ver, e);
-		}
-		if(r != null) {
-		    Resource.Image ir = r.layer(Resource.imgc);
-		    if(ir != null) {
-			texes[t] = ir.img;
-		    }
-		}
-		cached[t] = true;
+	protected BufferedImage tiletex(int t) {
+	    Resource r = null;
+	    try {
+		r = tilesets[t].res.loadsaved(Resource.remote());
+	    } catch(Loading l) {
+		throw(l);
+	    } catch(Exception e) {
+		Debug.log.printf("mapfile warning: could not load tileset resource %s(v%d): %s\n", tilesets[t].res.name, tilesets[t].res.ver, e);
+	    }
+	    if(r != null) {
+		Resource.Image ir = r.layer(Resource.imgc);
+		if(ir != null)
+		    return(ir.img);
+	    }
+	    return(null);
+	}
+
+	/* Tileset textures unpacked to ARGB once, rather than going
+	 * through getRGB for every rendered pixel. */
+	private static class TexPixels {
+	    final int w, h;
+	    final int[] px;
+
+	    TexPixels(BufferedImage img) {
+		this.w = img.getWidth();
+		this.h = img.getHeight();
+		this.px = img.getRGB(0, 0, w, h, null, 0, w);
+	    }
+	}
+	private static final Map<BufferedImage, TexPixels> texpixels = Collections.synchronizedMap(new WeakHashMap<>());
+	private static final TexPixels notex = new TexPixels(new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB));
+
+	private TexPixels texpix(int t, TexPixels[] texes) {
+	    if(texes[t] == null) {
+		BufferedImage img = tiletex(t);
+		texes[t] = (img == null) ? notex : texpixels.computeIfAbsent(img, TexPixels::new);
 	    }
 	    return(texes[t]);
 	}
 
 	public BufferedImage render(Coord off) {
-	    BufferedImage[] texes = new BufferedImage[256];
-	    boolean[] cached = new boolean[256];
-	    WritableRaster buf = PUtils.imgraster(cmaps);
-	    Coord c = new Coord();
-	    for(c.y = 0; c.y < cmaps.y; c.y++) {
-		for(c.x = 0; c.x < cmaps.x; c.x++) {
-		    int t = gettile(c);
-		    BufferedImage tex = tiletex(t, texes, cached);
-		    int rgb = 0;
-		    if(tex != null)
-			rgb = tex.getRGB(Utils.floormod(c.x + off.x, tex.getWidth()),
-					 Utils.floormod(c.y + off.y, tex.getHeight()));
-		    buf.setSample(c.x, c.y, 0, (rgb & 0x00ff0000) >>> 16);
-		    buf.setSample(c.x, c.y, 1, (rgb & 0x0000ff00) >>>  8);
-		    buf.setSample(c.x, c.y, 2, (rgb & 0x000000ff) >>>  0);
-		    buf.setSample(c.x, c.y, 3, (rgb & 0xff000000) >>> 24);
+	    TexPixels[] texes = new TexPixels[256];
+	    int[] prio = new int[256];
+	    for(int i = 0; i < tilesets.length; i++)
+		prio[i] = tilesets[i].prio;
+	    int w = cmaps.x, h = cmaps.y;
+	    int[] px = new int[w * h];
+	    for(int y = 0, i = 0; y < h; y++) {
+		for(int x = 0; x < w; x++, i++) {
+		    TexPixels tex = texpix(tiles[i] & 0xff, texes);
+		    px[i] = tex.px[Utils.floormod(x + off.x, tex.w) + (Utils.floormod(y + off.y, tex.h) * tex.w)];
 		}
 	    }
-	    for(c.y = 1; c.y < cmaps.y - 1; c.y++) {
-		for(c.x = 1; c.x < cmaps.x - 1; c.x++) {
-		    int p = tilesets[gettile(c)].prio;
-		    if((tilesets[gettile(c.add(-1, 0))].prio > p) ||
-		       (tilesets[gettile(c.add( 1, 0))].prio > p) ||
-		       (tilesets[gettile(c.add(0, -1))].prio > p) ||
-		       (tilesets[gettile(c.add(0,  1))].prio > p))
-		    {
-			buf.setSample(c.x, c.y, 0, 0);
-			buf.setSample(c.x, c.y, 1, 0);
-			buf.setSample(c.x, c.y, 2, 0);
-			buf.setSample(c.x, c.y, 3, 255);
-		    }
+	    for(int y = 1; y < h - 1; y++) {
+		for(int x = 1, i = (y * w) + 1; x < w - 1; x++, i++) {
+		    int p = prio[tiles[i] & 0xff];
+		    if((prio[tiles[i - 1] & 0xff] > p) || (prio[tiles[i + 1] & 0xff] > p) ||
+		       (prio[tiles[i - w] & 0xff] > p) || (prio[tiles[i + w] & 0xff] > p))
+			px[i] = 0xff000000;
 		}
 	    }
-	    return(PUtils.rasterimg(buf));
+	    BufferedImage ret = TexI.mkbuf(cmaps);
+	    byte[] dst = ((DataBufferByte)ret.getRaster().getDataBuffer()).getData();
+	    for(int i = 0, o = 0; i < px.length; i++) {
+		int rgb = px[i];
+		dst[o++] = (byte)(rgb >>> 16);
+		dst[o++] = (byte)(rgb >>>  8);
+		dst[o++] = (byte)rgb;
+		dst[o++] = (byte)(rgb >>> 24);
+	    }
+	    return(ret);
+	}
+
+	public static BufferedImage[] render(DataGrid[] grids, Coord[] offs) {
+	    BufferedImage[] ret = new BufferedImage[grids.length];
+	    RuntimeException[] errs = new RuntimeException[grids.length];
+	    IntStream idx = IntStream.range(0, grids.length);
+	    if(Config.par)
+		idx = idx.parallel();
+	    idx.forEach(i -> {
+		    try {
+			ret[i] = grids[i].render(offs[i]);
+		    } catch(RuntimeException e) {
+			errs[i] = e;
+		    }
+		});
+	    for(RuntimeException e : errs) {
+		if(e != null)
+		    throw(e);
+	    }
+	    return(ret);
 	}
 
 	public static void savez(Message fp, float[] zmap) {
@@ -584,6 +904,16 @@ public class MapFile {
 	    return(g);
 	}
 
+	private boolean needsprev() {
+	    if(norepl == null)
+		return(false);
+	    for(byte t : tiles) {
+		if(norepl[t])
+		    return(true);
+	    }
+	    return(false);
+	}
+
 	public Grid mergeprev(Grid prev) {
 	    if((norepl == null) || (prev.tiles.length != this.tiles.length))
 		return(this);
@@ -724,12 +1054,25 @@ public class MapFile {
 	public static ZoomGrid from(MapFile file, Segment seg, int lvl, Coord sc) {
 	    if((lvl < 1) || ((sc.x & ((1 << lvl) - 1)) != 0) || ((sc.y & ((1 << lvl) - 1)) != 0))
 		throw(new IllegalArgumentException(String.format("%s %s", sc, lvl)));
+	    int gen = file.zgen(seg.id);
 	    DataGrid[] lower = new DataGrid[4];
-	    boolean any = false;
-	    long maxmtime = 0;
 	    for(int i = 0; i < 4; i++) {
 		int x = i % 2, y = i / 2;
 		lower[i] = fetchg(file, seg, lvl - 1, sc.add(x << (lvl - 1), y << (lvl - 1)));
+	    }
+	    ZoomGrid ret = merge(seg.id, lvl, sc, lower);
+	    if(ret != null)
+		file.zsave(ret, gen);
+	    return(ret);
+	}
+
+	/* Downsamples four grids of the level below, in the order
+	 * (0, 0), (1, 0), (0, 1), (1, 1), into one. */
+	public static ZoomGrid merge(long seg, int lvl, Coord sc, DataGrid[] lower) {
+	    lower = lower.clone();
+	    boolean any = false;
+	    long maxmtime = 0;
+	    for(int i = 0; i < 4; i++) {
 		if(lower[i] != null) {
 		    any = true;
 		    maxmtime = Math.max(maxmtime, lower[i].mtime);
@@ -752,21 +1095,19 @@ public class MapFile {
 		Set<String> hassets = new HashSet<>();
 		Map<String, Integer> vers = new HashMap<>();
 		for(int i = 0; i < 4; i++) {
-		    if(lower[i] == null)
-			continue;
 		    for(int tn = 0; tn < lower[i].tilesets.length; tn++) {
 			Resource.Spec set = lower[i].tilesets[tn].res;
 			if(pool == null)
 			    pool = set.pool;
 			vers.put(set.name, Math.max(vers.getOrDefault(set.name, 0), set.ver));
 			if(!hassets.contains(set.name)) {
+			    if(nt >= 256)
+				throw(new IllegalArgumentException(Integer.toString(nt)));
 			    sets[nt++] = set.name;
 			    hassets.add(set.name);
 			}
 		    }
 		}
-		if(nt >= 256)
-		    throw(new IllegalArgumentException(Integer.toString(nt)));
 		infos = new TileInfo[nt];
 		rinfos = new HashMap<>();
 		for(int i = 0; i < nt; i++) {
@@ -775,40 +1116,34 @@ public class MapFile {
 		}
 	    }
 
-	    byte[] tiles = new byte[cmaps.x * cmaps.y];
-	    float[] zmap = new float[cmaps.x * cmaps.y];
+	    int w = cmaps.x, h = cmaps.y;
+	    byte[] tiles = new byte[w * h];
+	    float[] zmap = new float[w * h];
+	    byte[] tc = new byte[4];
+	    int[] tcn = new int[4];
 	    for(int gn = 0; gn < 4; gn++) {
-		int gx = gn % 2, gy = gn / 2;
 		DataGrid cg = lower[gn];
-		if(cg == null)
-		    continue;
 		byte[] tmap = new byte[256];
 		Arrays.fill(tmap, (byte)-1);
 		for(int i = 0; i < cg.tilesets.length; i++)
 		    tmap[i] = rinfos.get(cg.tilesets[i].res.name).byteValue();
-		Coord off = cmaps.div(2).mul(gx, gy);
-		byte[] tc = new byte[4];
-		byte[] tcn = new byte[4];
-		for(int y = 0; y < cmaps.y / 2; y++) {
-		    for(int x = 0; x < cmaps.x / 2; x++) {
+		byte[] ct = cg.tiles;
+		float[] cz = cg.zmap;
+		int off = ((gn % 2) * (w / 2)) + ((gn / 2) * (h / 2) * w);
+		for(int y = 0; y < h / 2; y++) {
+		    for(int x = 0, si = (y * 2 * w), di = off + (y * w); x < w / 2; x++, si += 2, di++) {
 			int nd = 0;
-			float minz = Float.POSITIVE_INFINITY;
-			for(int sy = 0; sy < 2; sy++) {
-			    for(int sx = 0; sx < 2; sx++) {
-				Coord sgc = new Coord((x * 2) + sx, (y * 2) + sy);
-				byte st = tmap[cg.gettile(sgc)];
-				minz = Math.min(minz, (float)cg.getfz(sgc));
-				st: {
-				    for(int i = 0; i < nd; i++) {
-					if(tc[i] == st) {
-					    tcn[i]++;
-					    break st;
-					}
-				    }
-				    tc[nd] = st;
-				    tcn[nd] = 1;
-				    nd++;
-				}
+			for(int s = 0; s < 4; s++) {
+			    int i = si + (s & 1) + ((s >> 1) * w);
+			    byte st = tmap[ct[i] & 0xff];
+			    int n = 0;
+			    while((n < nd) && (tc[n] != st))
+				n++;
+			    if(n == nd) {
+				tc[nd] = st;
+				tcn[nd++] = 1;
+			    } else {
+				tcn[n]++;
 			    }
 			}
 			int mi = 0;
@@ -816,16 +1151,90 @@ public class MapFile {
 			    if(tcn[i] > tcn[mi])
 				mi = i;
 			}
-			tiles[(x + off.x) + ((y + off.y) * cmaps.x)] = tc[mi];
-			zmap[(x + off.x) + ((y + off.y) * cmaps.x)] = minz;
+			tiles[di] = tc[mi];
+			zmap[di] = Math.min(Math.min(cz[si], cz[si + 1]), Math.min(cz[si + w], cz[si + w + 1]));
 		    }
 		}
 	    }
-	    ZoomGrid ret = new ZoomGrid(seg.id, lvl, sc, infos, tiles, zmap, maxmtime);
-	    ret.save(file);
-	    return(ret);
+	    return(new ZoomGrid(seg, lvl, sc, infos, tiles, zmap, maxmtime));
 	}
 
+	/* Precomputes the zoom levels of a segment, forking over the
+	 * nodes of its quadtree. Valid stored nodes are reused as they
+	 * are, and since inval() empties every ancestor of a changed
+	 * grid, only those get rebuilt, and whatever was saved before
+	 * a restart is kept. */
+	public static int build(MapFile file, long segid) {
+	    Map<Coord, Long> map;
+	    file.lock.readLock().lock();
+	    try {
+		Segment seg = file.segments.get(segid);
+		if(seg == null)
+		    return(0);
+		map = new HashMap<>(seg.map);
+	    } finally {
+		file.lock.readLock().unlock();
+	    }
+	    List<Set<Coord>> levels = new ArrayList<>();
+	    levels.add(map.keySet());
+	    while(true) {
+		int lvl = levels.size();
+		Set<Coord> cur = new HashSet<>();
+		for(Coord c : levels.get(lvl - 1))
+		    cur.add(new Coord(c.x & ~((1 << lvl) - 1), c.y & ~((1 << lvl) - 1)));
+		levels.add(cur);
+		if((cur.size() <= 4) || (lvl >= MAXBUILD))
+		    break;
+	    }
+	    AtomicInteger built = new AtomicInteger(0);
+	    class Node extends RecursiveTask<DataGrid> {
+		final int lvl;
+		final Coord sc;
+
+		Node(int lvl, Coord sc) {this.lvl = lvl; this.sc = sc;}
+
+		protected DataGrid compute() {
+		    if(lvl == 0)
+			return(Grid.load(file, map.get(sc)));
+		    ZoomGrid ret = load(file, segid, lvl, sc);
+		    if(ret != null)
+			return(ret);
+		    int gen = file.zgen(segid);
+		    Node[] sub = new Node[4];
+		    List<Node> forked = new ArrayList<>(4);
+		    for(int i = 0; i < 4; i++) {
+			Coord cc = sc.add((i % 2) << (lvl - 1), (i / 2) << (lvl - 1));
+			if(levels.get(lvl - 1).contains(cc))
+			    forked.add(sub[i] = new Node(lvl - 1, cc));
+		    }
+		    DataGrid[] lower = new DataGrid[4];
+		    if(Config.par)
+			invokeAll(forked);
+		    for(int i = 0; i < 4; i++) {
+			if(sub[i] != null)
+			    lower[i] = Config.par ? sub[i].join() : sub[i].compute();
+		    }
+		    ret = merge(segid, lvl, sc, lower);
+		    if(ret != null) {
+			file.zsave(ret, gen);
+			built.incrementAndGet();
+		    }
+		    return(ret);
+		}
+	    }
+	    List<Node> top = new ArrayList<>();
+	    for(Coord c : levels.get(levels.size() - 1))
+		top.add(new Node(levels.size() - 1, c));
+	    if(Config.par) {
+		ForkJoinTask.invokeAll(top);
+	    } else {
+		for(Node n : top)
+		    n.compute();
+	    }
+	    return(built.get());
+	}
+	public static final int MAXBUILD = 10;
+
 	public void save(Message fp) {
 	    fp.adduint8(2);
 	    ZMessage z = new ZMessage(fp);
@@ -903,6 +1312,7 @@ public class MapFile {
 	}
 
 	public static int inval(MapFile file, long seg, Coord sc) {
+	    file.bumpzgen(seg);
 	    for(int lvl = 1; true; lvl++) {
 		sc = new Coord(sc.x & ~((1 << lvl) - 1), sc.y & ~((1 << lvl) - 1));
 		try {
@@ -922,6 +1332,41 @@ public class MapFile {
 	}
     }
 
+    /* Zoom grids built from data that has since been invalidated
+     * must not be left saved over the invalidation, so saving is
+     * checked against a per-segment generation that inval() bumps. */
+    private final Map<Long, Integer> zgens = new HashMap<>();
+
+    private int zgen(long seg) {
+	synchronized(zgens) {
+	    return(zgens.getOrDefault(seg, 0));
+	}
+    }
+
+    private void bumpzgen(long seg) {
+	synchronized(zgens) {
+	    zgens.put(seg, zgens.getOrDefault(seg, 0) + 1);
+	}
+    }
+
+    /* The grid is saved without holding the generation lock, so if
+     * the generation moved on in the meantime, what was written may
+     * have landed after an invalidation and is blanked again. */
+    private boolean zsave(ZoomGrid grid, int gen) {
+	if(zgen(grid.seg) != gen)
+	    return(false);
+	grid.save(this);
+	if(zgen(grid.seg) != gen) {
+	    try {
+		sstore("zgrid-%x-%d-%d-%d", grid.seg, grid.lvl, grid.sc.x, grid.sc.y).close();
+	    } catch(IOException e) {
+		throw(new StreamMessage.IOError(e));
+	    }
+	    return(false);
+	}
+	return(true);
+    }
+
     public static class ZoomCoord {
 	public final int lvl;
 	public final Coord c;
@@ -1053,8 +1498,30 @@ public class MapFile {
 	    }
 	}
 
-	private void include(long id, Coord sc) {
+	/* Places a grid without touching the zoom levels above it,
+	 * optionally also replacing its loaded data. */
+	private void place(long id, Coord sc, Grid loaded) {
+	    checklock();
 	    map.put(sc, id);
+	    if(loaded != null)
+		setloaded(loaded);
+	    ByCoord bc;
+	    synchronized(ccache) {
+		bc = ccache.get(sc);
+	    }
+	    if((bc != null) && (bc.cur == null))
+		bc.cur = grid0(id);
+	}
+
+	private void setloaded(Grid grid) {
+	    synchronized(cache) {
+		Cached cur = cache.get(grid.id);
+		if(cur != null)
+		    cur.loaded = grid;
+	    }
+	}
+
+	private void invalzoom(Coord sc) {
 	    int zl = ZoomGrid.inval(MapFile.this, this.id, sc);
 	    synchronized(zcache) {
 		for(int lvl = 1; lvl < zl; lvl++) {
@@ -1066,22 +1533,17 @@ public class MapFile {
 		    }
 		}
 	    }
-	    ByCoord bc;
-	    synchronized(ccache) {
-		bc = ccache.get(sc);
-	    }
-	    if((bc != null) && (bc.cur == null))
-		bc.cur = grid0(id);
+	}
+
+	private void include(long id, Coord sc) {
+	    place(id, sc, null);
+	    invalzoom(sc);
 	}
 
 	private void include(Grid grid, Coord sc) {
 	    checklock();
 	    include(grid.id, sc);
-	    synchronized(cache) {
-		Cached cur = cache.get(grid.id);
-		if(cur != null)
-		    cur.loaded = grid;
-	    }
+	    setloaded(grid);
 	}
     }
 
@@ -1169,6 +1631,17 @@ public class MapFile {
 	    this.tiles = new Tiler[nsets.length];
 	}
 
+	public long stamp() {
+	    long h = 0;
+	    for(Map.Entry<Coord, GridMap> ent : grids.entrySet()) {
+		long e = stampmix(stampmix(0xcbf29ce484222325L, ent.getKey().x), ent.getKey().y);
+		if(ent.getValue() != null)
+		    e = stampmix(stampmix(e, ent.getValue().grid.id), ent.getValue().grid.stamp());
+		h += e;
+	    }
+	    return(h);
+	}
+
 	private Coord cachedgc = null;
 	private GridMap cached = null;
 	private GridMap getgrid(Coord gc) {
@@ -1277,6 +1750,7 @@ public class MapFile {
 	    if(mark.seg == src.id) {
 		mark.seg = dst.id;
 		mark.tc = mark.tc.sub(soff.mul(cmaps));
+		markidx.update(mark);
 		mf = true;
 	    }
 	}
@@ -1290,7 +1764,276 @@ public class MapFile {
 	}
     }
 
+    /* Grids updated from the game map are written out in the
+     * background, so that an update only holds the lock for its
+     * in-memory part. Pending writes are coalesced per grid, keeping
+     * only the versions whose merging with their predecessors can
+     * still matter. Once a grid is written, the zoom levels above it
+     * are invalidated. */
+    private class GridWriter {
+	static final int MAXPENDING = 64;
+	private final Map<Long, Job> pending = new LinkedHashMap<>();
+	private Thread th = null;
+	private boolean busy = false;
+	private long nwritten = 0, ncoalesced = 0, ttime = 0;
+
+	class Job {
+	    final long id, queued = System.nanoTime();
+	    final List<Grid> vers = new ArrayList<>();
+	    boolean known;
+
+	    Job(long id, boolean known) {
+		this.id = id;
+		this.known = known;
+	    }
+	}
+
+	synchronized void add(Grid grid, boolean known) {
+	    Job job = pending.get(grid.id);
+	    if(job == null) {
+		boolean intr = false;
+		while(pending.size() >= MAXPENDING) {
+		    try {
+			wait();
+		    } catch(InterruptedException e) {
+			intr = true;
+			break;
+		    }
+		}
+		if(intr)
+		    Thread.currentThread().interrupt();
+		pending.put(grid.id, job = new Job(grid.id, known));
+	    } else {
+		ncoalesced++;
+	    }
+	    if(!grid.needsprev()) {
+		job.vers.clear();
+		job.known = false;
+	    }
+	    job.vers.add(grid);
+	    if(th == null) {
+		th = new HackThread(this::run, "Mapfile writer");
+		th.setDaemon(true);
+		th.start();
+	    }
+	    notifyAll();
+	}
+
+	private void write(Job job) {
+	    Grid cur = job.known ? Grid.load(MapFile.this, job.id) : null;
+	    for(Grid ver : job.vers)
+		cur = (cur == null) ? ver : ver.mergeprev(cur);
+	    cur.save(MapFile.this);
+	    lock.readLock().lock();
+	    try {
+		GridInfo info = gridinfo.get(job.id);
+		Segment seg = (info == null) ? null : segments.get(info.seg);
+		if(seg != null) {
+		    synchronized(this) {
+			if(!pending.containsKey(job.id))
+			    seg.setloaded(cur);
+		    }
+		    seg.invalzoom(info.sc);
+		    zbuilder.add(seg.id, ZoomBuilder.DELAY);
+		}
+	    } finally {
+		lock.readLock().unlock();
+	    }
+	}
+
+	private void run() {
+	    try {
+		while(true) {
+		    Job job;
+		    synchronized(this) {
+			long start = System.currentTimeMillis();
+			while(pending.isEmpty()) {
+			    if(System.currentTimeMillis() - start > 10000) {
+				th = null;
+				return;
+			    }
+			    wait(5000);
+			}
+			job = Utils.take(pending.values());
+			busy = true;
+			notifyAll();
+		    }
+		    try {
+			write(job);
+		    } catch(RuntimeException e) {
+			new Warning(e, String.format("could not write map grid %x", job.id)).issue();
+		    } finally {
+			synchronized(this) {
+			    busy = false;
+			    nwritten++;
+			    ttime += System.nanoTime() - job.queued;
+			    notifyAll();
+			}
+		    }
+		}
+	    } catch(InterruptedException e) {
+	    } finally {
+		synchronized(this) {
+		    if(th == Thread.currentThread())
+			th = null;
+		}
+	    }
+	}
+
+	synchronized boolean flush(long timeout) throws InterruptedException {
+	    long end = System.currentTimeMillis() + timeout;
+	    while(!pending.isEmpty() || busy) {
+		long now = System.currentTimeMillis();
+		if(now >= end)
+		    return(false);
+		wait(end - now);
+	    }
+	    return(true);
+	}
+
+	public synchronized String toString() {
+	    return(String.format("%d pending, %d written, %d coalesced, %.1f ms", pending.size() + (busy ? 1 : 0), nwritten, ncoalesced,
+				 (nwritten == 0) ? 0.0 : (ttime * 1e-6) / nwritten));
+	}
+    }
+    private final GridWriter writer = new GridWriter();
+
+    /* Segments whose grids have changed get their zoom levels
+     * rebuilt in the background a little while later, so that
+     * bursts of updates are handled together and zooming out does
+     * not have to build them on demand. */
+    private class ZoomBuilder {
+	static final long DELAY = 5000;
+	private final Map<Long, Long> pending = new HashMap<>();
+	private Thread th = null;
+	private long nsegs = 0, nbuilt = 0, ttime = 0;
+
+	synchronized void add(long seg, long delay) {
+	    long due = System.currentTimeMillis() + delay;
+	    Long prev = pending.get(seg);
+	    if((prev == null) || (prev > due))
+		pending.put(seg, due);
+	    if(th == null) {
+		th = new HackThread(this::run, "Mapfile zoom builder");
+		th.setDaemon(true);
+		th.start();
+	    }
+	    notifyAll();
+	}
+
+	private void run() {
+	    try {
+		long idle = System.currentTimeMillis();
+		while(true) {
+		    long seg;
+		    synchronized(this) {
+			while(true) {
+			    long now = System.currentTimeMillis();
+			    Map.Entry<Long, Long> next = null;
+			    for(Map.Entry<Long, Long> ent : pending.entrySet()) {
+				if((next == null) || (ent.getValue() < next.getValue()))
+				    next = ent;
+			    }
+			    if(next == null) {
+				if(now - idle > 10000) {
+				    th = null;
+				    return;
+				}
+				wait(5000);
+			    } else if(next.getValue() > now) {
+				wait(next.getValue() - now);
+			    } else {
+				seg = next.getKey();
+				pending.remove(seg);
+				break;
+			    }
+			}
+		    }
+		    long st = System.nanoTime();
+		    try {
+			int n = ZoomGrid.build(MapFile.this, seg);
+			synchronized(this) {
+			    nsegs++;
+			    nbuilt += n;
+			    ttime += System.nanoTime() - st;
+			}
+		    } catch(RuntimeException e) {
+			new Warning(e, String.format("could not build zoom levels for segment %x", seg)).issue();
+		    }
+		    idle = System.currentTimeMillis();
+		}
+	    } catch(InterruptedException e) {
+	    } finally {
+		synchronized(this) {
+		    if(th == Thread.currentThread())
+			th = null;
+		}
+	    }
+	}
+
+	public synchronized String toString() {
+	    return(String.format("zoom %d pending, %d built in %d segs, %.1f ms", pending.size(), nbuilt, nsegs,
+				 (nsegs == 0) ? 0.0 : (ttime * 1e-6) / nsegs));
+	}
+    }
+    private final ZoomBuilder zbuilder = new ZoomBuilder();
+
+    /* Has the zoom levels of a segment built in the background. */
+    public void buildzoom(long seg) {
+	zbuilder.add(seg, 0);
+    }
+
+    private static final Map<MapFile, Boolean> live = new WeakHashMap<>();
+    static {
+	Runtime.getRuntime().addShutdownHook(new HackThread(() -> {
+		    Collection<MapFile> files;
+		    synchronized(live) {
+			files = new ArrayList<>(live.keySet());
+		    }
+		    for(MapFile file : files) {
+			try {
+			    file.flush(10000);
+			} catch(InterruptedException e) {
+			    break;
+			}
+			if(file.pack != null)
+			    file.pack.commit();
+		    }
+	}, "Mapfile flusher"));
+    }
+
+    /* Waits for pending grid writes to finish. */
+    public boolean flush(long timeout) throws InterruptedException {
+	return(writer.flush(timeout));
+    }
+
+    public String wstats() {
+	return(writer.toString() + "; " + zbuilder.toString());
+    }
+
     public void update(MCache map, Collection<MCache.Grid> grids) {
+	/* Find the grids that have changed or are missing, and convert
+	 * only those, without holding the lock while doing so. Should
+	 * anything change in between, the rest is converted under the
+	 * lock as before. */
+	Collection<MCache.Grid> changed = new ArrayList<>();
+	lock.readLock().lock();
+	try {
+	    for(MCache.Grid g : grids) {
+		GridInfo info = gridinfo.get(g.id);
+		Segment seg = (info == null) ? null : segments.get(info.seg);
+		Grid cur = (seg == null) ? null : seg.loaded(g.id);
+		if((cur == null) || (cur.useq != g.seq))
+		    changed.add(g);
+	    }
+	} finally {
+	    lock.readLock().unlock();
+	}
+	Map<Long, Grid> fresh = new HashMap<>();
+	for(MCache.Grid g : changed)
+	    fresh.put(g.id, Grid.from(map, g));
+	Function<MCache.Grid, Grid> conv = g -> fresh.computeIfAbsent(g.id, id -> Grid.from(map, g));
+	Collection<Pair<Grid, Boolean>> written = new ArrayList<>();
 	lock.writeLock().lock();
 	try {
 	    long mseg = -1;
@@ -1324,14 +2067,9 @@ public class MapFile {
 		}
 		Grid cur = seg.loaded(g.id);
 		if(!((cur != null) && (cur.useq == g.seq))) {
-		    Grid sg = Grid.from(map, g);
-		    Grid prev = cur;
-		    if(prev == null)
-			prev = Grid.load(MapFile.this, sg.id);
-		    if(prev != null)
-			sg = sg.mergeprev(prev);
-		    sg.save(MapFile.this);
-		    seg.include(sg, info.sc);
+		    Grid sg = conv.apply(g);
+		    written.add(new Pair<>(sg, true));
+		    seg.place(sg.id, info.sc, (cur == null) ? null : sg.mergeprev(cur));
 		}
 		if(seg.id != mseg) {
 		    if(merge == null)
@@ -1354,10 +2092,10 @@ public class MapFile {
 		    process();
 		}
 		for(MCache.Grid g : missing) {
-		    Grid sg = Grid.from(map, g);
+		    Grid sg = conv.apply(g);
 		    Coord sc = g.gc.add(moff);
-		    sg.save(MapFile.this);
-		    seg.include(sg, sc);
+		    written.add(new Pair<>(sg, false));
+		    seg.place(sg.id, sc, sg);
 		    gridinfo.put(g.id, new GridInfo(g.id, seg.id, sc));
 		}
 	    }
@@ -1381,6 +2119,8 @@ public class MapFile {
 	} finally {
 	    lock.writeLock().unlock();
 	}
+	for(Pair<Grid, Boolean> w : written)
+	    writer.add(w.a, w.b);
 	if(debug) Debug.log.printf("mapfile: update completed\n");
     }
 
@@ -1429,8 +2169,224 @@ public class MapFile {
 	public default void mark(int cm, int nm) {}
     }
 
+    /* Runs jobs on worker threads, handing their results back to
+     * the calling thread in submission order. Callers keep the number
+     * of jobs in flight bounded, so that memory use does not grow
+     * with the amount of data passing through. */
+    private static class Pipeline<T> implements AutoCloseable {
+	private final Thread[] workers;
+	private final Queue<Job> todo = new ArrayDeque<>();
+	private final Queue<Job> order = new ArrayDeque<>();
+	private boolean closed = false;
+
+	private class Job {
+	    final Supplier<T> task;
+	    T result;
+	    Throwable error;
+	    boolean done;
+
+	    Job(Supplier<T> task) {this.task = task;}
+	}
+
+	Pipeline(String name, int n) {
+	    workers = new Thread[n];
+	    for(int i = 0; i < n; i++) {
+		workers[i] = new HackThread(this::run, name + " " + i);
+		workers[i].setDaemon(true);
+		workers[i].start();
+	    }
+	}
+
+	private void run() {
+	    try {
+		while(true) {
+		    Job job;
+		    synchronized(this) {
+			while(todo.isEmpty()) {
+			    if(closed)
+				return;
+			    wait();
+			}
+			job = todo.remove();
+		    }
+		    T result = null;
+		    Throwable error = null;
+		    try {
+			result = job.task.get();
+		    } catch(Throwable e) {
+			/* Passed on to next() so that the consumer never
+			 * waits for a job that a dead worker left undone. */
+			error = e;
+		    }
+		    synchronized(this) {
+			job.result = result;
+			job.error = error;
+			job.done = true;
+			notifyAll();
+		    }
+		}
+	    } catch(InterruptedException e) {
+	    }
+	}
+
+	synchronized void submit(Supplier<T> task) {
+	    Job job = new Job(task);
+	    todo.add(job);
+	    order.add(job);
+	    notifyAll();
+	}
+
+	synchronized int pending() {
+	    return(order.size());
+	}
+
+	synchronized T next() throws InterruptedException {
+	    Job job = order.remove();
+	    while(!job.done)
+		wait();
+	    if(job.error instanceof RuntimeException)
+		throw((RuntimeException)job.error);
+	    if(job.error instanceof Error)
+		throw((Error)job.error);
+	    if(job.error != null)
+		throw(new RuntimeException(job.error));
+	    return(job.result);
+	}
+
+	public void close() {
+	    synchronized(this) {
+		closed = true;
+		todo.clear();
+		notifyAll();
+	    }
+	    for(Thread th : workers)
+		th.interrupt();
+	}
+    }
+
+    private static int pipeworkers() {
+	return(Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 4)));
+    }
+
     private static final byte[] EXPORT_SIG = "Haven Mapfile 1".getBytes(Utils.ascii);
+    private static final byte[] EXPORT_SIG2 = "Haven Mapfile 2".getBytes(Utils.ascii);
+    private static final int EXPORT_CHUNKGRIDS = 64, EXPORT_CHUNKMARKS = 1024;
+
     public void export(Message out, ExportFilter filter, ExportStatus prog) throws InterruptedException {
+	if(Config.mapexport < 2)
+	    export1(out, filter, prog);
+	else
+	    export2(out, filter, prog);
+    }
+
+    private static void addrecord(Message buf, String type, byte[] od) {
+	buf.addstring(type);
+	buf.addint32(od.length);
+	buf.addbytes(od);
+    }
+
+    private static byte[] exportgrid(Grid grid, long segid, Coord sc) {
+	MessageBuf buf = new MessageBuf();
+	buf.adduint8(2);
+	buf.addint64(grid.id);
+	buf.addint64(segid);
+	buf.addint64(grid.mtime);
+	buf.addcoord(sc);
+	buf.adduint8(grid.tilesets.length);
+	for(TileInfo tinf : grid.tilesets) {
+	    buf.addstring(tinf.res.name);
+	    buf.adduint16(tinf.res.ver);
+	    buf.adduint8(tinf.prio);
+	}
+	buf.addint32(cmaps.x * cmaps.y);
+	buf.addbytes(grid.tiles);
+	DataGrid.savez(buf, grid.zmap);
+	return(buf.fin());
+    }
+
+    /* The chunked format follows its signature with a random export
+     * ID, which partial imports are resumed by, and a series of
+     * independently compressed chunks of the same records as the
+     * original format. A zero byte ends the chunks. */
+    private void export2(Message out, ExportFilter filter, ExportStatus prog) throws InterruptedException {
+	ExportStatus fprog = (prog == null) ? new ExportStatus() {} : prog;
+	out.addbytes(EXPORT_SIG2);
+	out.addint64(new Random().nextLong());
+	class Chunk {
+	    final byte[] data;
+	    final int crc;
+
+	    Chunk(Consumer<Message> fill) {
+		MessageBuf buf = new MessageBuf();
+		ZMessage z = new ZMessage(buf);
+		fill.accept(z);
+		z.finish();
+		this.data = buf.fin();
+		java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+		crc.update(data);
+		this.crc = (int)crc.getValue();
+	    }
+	}
+	Consumer<Chunk> write = ch -> {
+	    out.adduint8(1);
+	    out.addint32(ch.data.length);
+	    out.addint32(ch.crc);
+	    out.addbytes(ch.data);
+	};
+	int window = pipeworkers() * 2;
+	try(Pipeline<Chunk> pl = new Pipeline<>("Mapfile exporter", pipeworkers())) {
+	    Collection<Long> segbuf = locked((Collection<Long> c) -> new ArrayList<>(c), lock.readLock()).apply(knownsegs);
+	    int nseg = 0;
+	    for(Long sid : segbuf) {
+		if(!filter.includeseg(sid))
+		    continue;
+		List<Pair<Coord, Long>> gridbuf = new ArrayList<>();
+		lock.readLock().lock();
+		try {
+		    Segment seg = segments.get(sid);
+		    for(Map.Entry<Coord, Long> gd : seg.map.entrySet()) {
+			if(filter.includegrid(seg, gd.getKey(), gd.getValue()))
+			    gridbuf.add(new Pair<>(gd.getKey(), gd.getValue()));
+		    }
+		} finally {
+		    lock.readLock().unlock();
+		}
+		for(int i = 0; i < gridbuf.size(); i += EXPORT_CHUNKGRIDS) {
+		    while(pl.pending() >= window)
+			write.accept(pl.next());
+		    fprog.grid(nseg, segbuf.size(), i, gridbuf.size());
+		    List<Pair<Coord, Long>> sub = gridbuf.subList(i, Math.min(i + EXPORT_CHUNKGRIDS, gridbuf.size()));
+		    pl.submit(() -> new Chunk(z -> {
+				for(Pair<Coord, Long> gd : sub)
+				    addrecord(z, "grid", exportgrid(Grid.load(this, gd.b), sid, gd.a));
+		    }));
+		    Utils.checkirq();
+		}
+		nseg++;
+	    }
+	    List<Marker> markbuf = locked((Collection<Marker> c) -> new ArrayList<>(c), lock.readLock()).apply(markers);
+	    markbuf.removeIf(mark -> !filter.includemark(mark));
+	    for(int i = 0; i < markbuf.size(); i += EXPORT_CHUNKMARKS) {
+		while(pl.pending() >= window)
+		    write.accept(pl.next());
+		fprog.mark(i, markbuf.size());
+		List<Marker> sub = markbuf.subList(i, Math.min(i + EXPORT_CHUNKMARKS, markbuf.size()));
+		pl.submit(() -> new Chunk(z -> {
+			    for(Marker mark : sub) {
+				MessageBuf buf = new MessageBuf();
+				savemarker(buf, mark);
+				addrecord(z, "mark", buf.fin());
+			    }
+		}));
+		Utils.checkirq();
+	    }
+	    while(pl.pending() > 0)
+		write.accept(pl.next());
+	}
+	out.adduint8(0);
+    }
+
+    private void export1(Message out, ExportFilter filter, ExportStatus prog) throws InterruptedException {
 	if(prog == null) prog = new ExportStatus() {};
 	out.addbytes(EXPORT_SIG);
 	ZMessage zout = new ZMessage(out);
@@ -1454,26 +2410,7 @@ public class MapFile {
 	    int ngrid = 0;
 	    for(Pair<Coord, Long> gd : gridbuf) {
 		prog.grid(nseg, segbuf.size(), ngrid++, gridbuf.size());
-		Grid grid = Grid.load(this, gd.b);
-		MessageBuf buf = new MessageBuf();
-		buf.adduint8(2);
-		buf.addint64(gd.b);
-		buf.addint64(seg.id);
-		buf.addint64(grid.mtime);
-		buf.addcoord(gd.a);
-		buf.adduint8(grid.tilesets.length);
-		for(TileInfo tinf : grid.tilesets) {
-		    buf.addstring(tinf.res.name);
-		    buf.adduint16(tinf.res.ver);
-		    buf.adduint8(tinf.prio);
-		}
-		buf.addint32(cmaps.x * cmaps.y);
-		buf.addbytes(grid.tiles);
-		DataGrid.savez(buf, grid.zmap);
-		byte[] od = buf.fin();
-		zout.addstring("grid");
-		zout.addint32(od.length);
-		zout.addbytes(od);
+		addrecord(zout, "grid", exportgrid(Grid.load(this, gd.b), seg.id, gd.a));
 		Utils.checkirq();
 	    }
 	    nseg++;
@@ -1486,10 +2423,7 @@ public class MapFile {
 		continue;
 	    MessageBuf buf = new MessageBuf();
 	    savemarker(buf, mark);
-	    byte[] od = buf.fin();
-	    zout.addstring("mark");
-	    zout.addint32(od.length);
-	    zout.addbytes(od);
+	    addrecord(zout, "mark", buf.fin());
 	    Utils.checkirq();
 	}
 	zout.finish();
@@ -1546,10 +2480,14 @@ public class MapFile {
 	public boolean includegrid(ImportedGrid grid, boolean hasprev);
 	public boolean includemark(Marker mark, Marker prev);
 	public default void handleerror(RuntimeException exc, String ctx) {throw(exc);}
+	/* Whether an interrupted import with this filter may later be
+	 * resumed where it left off. */
+	public default boolean resumable() {return(false);}
 
 	public static ImportFilter all = new ImportFilter() {
 		public boolean includegrid(ImportedGrid grid, boolean hasprev) {return(true);}
 		public boolean includemark(Marker mark, Marker prev) {return(prev == null);}
+		public boolean resumable() {return(true);}
 	    };
 
 	public static ImportFilter readonly = new ImportFilter() {
@@ -1597,19 +2535,11 @@ public class MapFile {
 	    return(chseg(ret));
 	}
 
-	void importgrid(Message data) {
-	    ImportedGrid grid = new ImportedGrid(data);
+	ImportedSegment locate(ImportedGrid grid, GridInfo info) {
 	    ImportedSegment seg = segs.get(grid.segid);
 	    if(seg == null) {
 		segs.put(grid.segid, seg = new ImportedSegment());
 	    }
-	    GridInfo info;
-	    lock.readLock().lock();
-	    try {
-		info = gridinfo.get(grid.gid);
-	    } finally {
-		lock.readLock().unlock();
-	    }
 	    if(info != null) {
 		Coord off = seg.offs.get(info.seg);
 		if(off == null) {
@@ -1619,6 +2549,41 @@ public class MapFile {
 			throw(new RuntimeException("Inconsistent grid locations detected"));
 		}
 	    }
+	    return(seg);
+	}
+
+	GridInfo info(long gid) {
+	    lock.readLock().lock();
+	    try {
+		return(gridinfo.get(gid));
+	    } finally {
+		lock.readLock().unlock();
+	    }
+	}
+
+	/* Grids of chunks already imported by an interrupted run need
+	 * only tell where their segment went, unless they did not make
+	 * it to disk after all. */
+	void resumegrid(ImportedGrid grid) {
+	    GridInfo info = info(grid.gid);
+	    if(info == null) {
+		importgrid(grid);
+		return;
+	    }
+	    ImportedSegment seg = locate(grid, info);
+	    if(seg.noff == null) {
+		seg.nseg = info.seg;
+		seg.noff = seg.offs.get(info.seg);
+	    }
+	}
+
+	void importgrid(Message data) {
+	    importgrid(new ImportedGrid(data));
+	}
+
+	void importgrid(ImportedGrid grid) {
+	    GridInfo info = info(grid.gid);
+	    ImportedSegment seg = locate(grid, info);
 	    Segment rseg;
 	    if(filter.includegrid(grid, info != null)) {
 		lock.writeLock().lock();
@@ -1642,8 +2607,8 @@ public class MapFile {
 			    if(rseg == null)
 				throw(new NullPointerException());
 			} else {
-			    if(curseg.id != seg.nseg)
-				throw(new AssertionError());
+			    if(chseg(seg.nseg) == null)
+				throw(new NullPointerException());
 			    Segment nseg = segments.get(info.seg);
 			    Coord noff = seg.offs.get(info.seg);
 			    Coord soff = seg.noff.sub(noff);
@@ -1665,7 +2630,7 @@ public class MapFile {
 	}
 
 	Marker prevmark(Marker mark) {
-	    for(Marker pm : MapFile.this.markers) {
+	    for(Marker pm : markers(mark.seg, Area.sized(mark.tc, new Coord(1, 1)))) {
 		if((pm.getClass() != mark.getClass()) || !pm.nm.equals(mark.nm) || !pm.tc.equals(mark.tc))
 		    continue;
 		if(pm instanceof SMarker) {
@@ -1678,7 +2643,10 @@ public class MapFile {
 	}
 
 	void importmark(Message data) {
-	    Marker mark = loadmarker(data);
+	    importmark(loadmarker(data));
+	}
+
+	void importmark(Marker mark) {
 	    ImportedSegment seg = segs.get(mark.seg);
 	    if((seg == null) || (seg.noff == null))
 		return;
@@ -1692,8 +2660,136 @@ public class MapFile {
 	    }
 	}
 
+	List<Pair<String, Object>> decode(byte[] cd, int crc) {
+	    java.util.zip.CRC32 ck = new java.util.zip.CRC32();
+	    ck.update(cd);
+	    if((int)ck.getValue() != crc)
+		throw(new Message.FormatError("Corrupted map chunk"));
+	    List<Pair<String, Object>> ret = new ArrayList<>();
+	    Message data = new ZMessage(new MessageBuf(cd));
+	    while(!data.eom()) {
+		String type = data.string();
+		int len = data.int32();
+		Message lay = new LimitMessage(data, len);
+		Object rec = null;
+		try {
+		    if(type.equals("grid"))
+			rec = new ImportedGrid(lay);
+		    else if(type.equals("mark"))
+			rec = loadmarker(lay);
+		} catch(RuntimeException exc) {
+		    rec = exc;
+		}
+		if(rec != null)
+		    ret.add(new Pair<>(type, rec));
+		lay.skip();
+	    }
+	    return(ret);
+	}
+
+	void apply(List<Pair<String, Object>> chunk, boolean resumed) throws InterruptedException {
+	    for(Pair<String, Object> rec : chunk) {
+		try {
+		    if(rec.b instanceof RuntimeException) {
+			throw((RuntimeException)rec.b);
+		    } else if(rec.b instanceof ImportedGrid) {
+			if(resumed)
+			    resumegrid((ImportedGrid)rec.b);
+			else
+			    importgrid((ImportedGrid)rec.b);
+		    } else if(rec.b instanceof Marker) {
+			importmark((Marker)rec.b);
+		    }
+		} catch(RuntimeException exc) {
+		    filter.handleerror(exc, rec.a);
+		}
+		Utils.checkirq();
+	    }
+	}
+
+	int progress(long xid) {
+	    try(StreamMessage data = new StreamMessage(sfetch("import-%x", xid))) {
+		if(data.eom() || (data.uint8() != 1))
+		    return(0);
+		return(data.int32());
+	    } catch(IOException | Message.BinError e) {
+		return(0);
+	    }
+	}
+
+	void progress(long xid, int done) {
+	    if(done == 0) {
+		/* Where the store cannot remove, leave an empty record. */
+		try {
+		    if(sremove("import-%x", xid))
+			return;
+		} catch(FileNotFoundException e) {
+		    return;
+		} catch(IOException e) {
+		}
+	    }
+	    try(StreamMessage out = new StreamMessage(sstore("import-%x", xid))) {
+		if(done > 0) {
+		    out.adduint8(1);
+		    out.addint32(done);
+		}
+	    } catch(IOException e) {
+		throw(new StreamMessage.IOError(e));
+	    }
+	}
+
+	/* Chunks are read and handed to workers to decompress and
+	 * parse, while they are merged in order on this thread. Every
+	 * so often the number of merged chunks is recorded, and if the
+	 * import is interrupted, a later one of the same export skips
+	 * redoing them. */
+	void reimport2(Message data) throws InterruptedException {
+	    long xid = data.int64();
+	    boolean resume = filter.resumable();
+	    int skip = resume ? progress(xid) : 0;
+	    int window = pipeworkers() * 2, done = 0;
+	    double lastsave = Utils.rtime();
+	    try(Pipeline<List<Pair<String, Object>>> pl = new Pipeline<>("Mapfile importer", pipeworkers())) {
+		while(true) {
+		    int kind = data.uint8();
+		    if(kind == 0)
+			break;
+		    if(kind != 1)
+			throw(new Message.FormatError("Unknown map chunk type: " + kind));
+		    int len = data.int32(), crc = data.int32();
+		    byte[] cd = data.bytes(len);
+		    while(pl.pending() >= window) {
+			apply(pl.next(), done < skip);
+			done++;
+		    }
+		    pl.submit(() -> decode(cd, crc));
+		    if(resume && (done > skip) && (Utils.rtime() - lastsave > 10)) {
+			flush();
+			progress(xid, done);
+			lastsave = Utils.rtime();
+		    }
+		    Utils.checkirq();
+		}
+		while(pl.pending() > 0) {
+		    apply(pl.next(), done < skip);
+		    done++;
+		}
+	    } finally {
+		flush();
+		if(resume && (done > skip))
+		    progress(xid, done);
+	    }
+	    if(resume)
+		progress(xid, 0);
+	}
+
 	void reimport(Message data) throws InterruptedException {
-	    if(!Arrays.equals(EXPORT_SIG, data.bytes(EXPORT_SIG.length)))
+	    byte[] sig = data.bytes(EXPORT_SIG.length);
+	    if(Arrays.equals(EXPORT_SIG2, sig)) {
+		reimport2(data);
+		return;
+	    }
+	    if(!Arrays.equals(EXPORT_SIG, sig))
 		throw(new Message.FormatError("Invalid map file format"));
 	    data = new ZMessage(data);
 	    try {
@@ -1751,4 +2847,44 @@ public class MapFile {
 	    }
 	}
     }
+
+    public static void main(String[] args) {
+	if((args.length < 1) || !args[0].equals("render-bench")) {
+	    System.err.println("usage: MapFile render-bench [GRIDS]");
+	    System.exit(1);
+	}
+	int n = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+	Random rnd = new Random(0);
+	BufferedImage[] texes = new BufferedImage[8];
+	TileInfo[] sets = new TileInfo[texes.length];
+	for(int i = 0; i < texes.length; i++) {
+	    texes[i] = new BufferedImage(32, 32, BufferedImage.TYPE_INT_ARGB);
+	    for(int y = 0; y < 32; y++) {
+		for(int x = 0; x < 32; x++)
+		    texes[i].setRGB(x, y, rnd.nextInt() | 0xff000000);
+	    }
+	    sets[i] = new TileInfo(new Resource.Spec(null, "gfx/tiles/bench" + i, 1), i);
+	}
+	DataGrid[] grids = new DataGrid[n];
+	Coord[] offs = new Coord[n];
+	for(int i = 0; i < n; i++) {
+	    byte[] tiles = new byte[cmaps.x * cmaps.y];
+	    for(int o = 0; o < tiles.length; o++)
+		tiles[o] = (byte)rnd.nextInt(texes.length);
+	    grids[i] = new DataGrid(sets, tiles, new float[tiles.length], 0) {
+		    protected BufferedImage tiletex(int t) {return(texes[t]);}
+		};
+	    offs[i] = cmaps.mul(i, 0);
+	}
+	for(int r = 0; r < 3; r++) {
+	    long st = System.nanoTime();
+	    for(int i = 0; i < n; i++)
+		grids[i].render(offs[i]);
+	    double single = (System.nanoTime() - st) * 1e-9;
+	    st = System.nanoTime();
+	    DataGrid.render(grids, offs);
+	    double batch = (System.nanoTime() - st) * 1e-9;
+	    System.out.printf("render: %.0f grids/s serially, %.0f grids/s batched\n", n / single, n / batch);
+	}
+    }
 }
@@ -0,0 +1,444 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+import java.util.*;
+import java.util.zip.*;
+import java.io.*;
+
+/* Container storage for map files, keeping entries in one file per
+ * bucket instead of one cache entry each. A container holds its
+ * entries back to back, followed by an offset index and a trailer
+ * pointing to it. Updates are appended copy-on-write and reach the
+ * on-disk index only when the container is committed, which is done
+ * in batches; records appended after the last commit carry checksums
+ * and are recovered by scanning if the client exits uncleanly. */
+public class MapPack {
+    private static final int TRAILSIG = 0x4d504b31;
+    public final File base;
+    private final Map<String, Container> containers = new HashMap<>();
+    private boolean migrated;
+
+    public MapPack(File base) {
+	this.base = base;
+	this.migrated = new File(base, "migrated").exists();
+	Runtime.getRuntime().addShutdownHook(new HackThread(this::commit, "Map pack committer"));
+    }
+
+    private static final Map<File, MapPack> current = new HashMap<>();
+    public static MapPack get(File base) throws IOException {
+	synchronized(current) {
+	    MapPack ret = current.get(base);
+	    if(ret == null) {
+		if(!base.isDirectory() && !base.mkdirs())
+		    throw(new IOException("could not create " + base));
+		current.put(base, ret = new MapPack(base));
+	    }
+	    return(ret);
+	}
+    }
+
+    public static MapPack get(String id) throws IOException {
+	long h = 0;
+	for(int i = 0; i < id.length(); i++)
+	    h = (h * 31) + id.charAt(i);
+	return(get(new File(HashDirCache.findbase("maps"), String.format("%016x", h))));
+    }
+
+    private static class Entry {
+	final long off;
+	final int len;
+
+	Entry(long off, int len) {
+	    this.off = off;
+	    this.len = len;
+	}
+    }
+
+    private class Container {
+	final File path;
+	final Map<String, Entry> index = new HashMap<>();
+	RandomAccessFile fp = null;
+	long end = 0, garbage = 0;
+	boolean dirty = false, used = false, loaded = false;
+
+	Container(String bucket) {
+	    this.path = new File(base, bucket + ".mpk");
+	}
+
+	RandomAccessFile file() throws IOException {
+	    if(fp == null)
+		fp = new RandomAccessFile(path, "rw");
+	    used = true;
+	    return(fp);
+	}
+
+	void load() throws IOException {
+	    if(loaded)
+		return;
+	    if(path.exists()) {
+		RandomAccessFile fp = file();
+		if(!readindex(fp)) {
+		    index.clear();
+		    garbage = 0;
+		    end = scan(fp);
+		    dirty = end > 0;
+		}
+	    }
+	    loaded = true;
+	}
+
+	private boolean readindex(RandomAccessFile fp) throws IOException {
+	    long sz = fp.length();
+	    if(sz < 16)
+		return(false);
+	    fp.seek(sz - 16);
+	    long ioff = fp.readLong();
+	    int sum = fp.readInt();
+	    if((fp.readInt() != TRAILSIG) || (ioff < 0) || (ioff > sz - 16))
+		return(false);
+	    byte[] buf = new byte[(int)(sz - 16 - ioff)];
+	    fp.seek(ioff);
+	    fp.readFully(buf);
+	    CRC32 crc = new CRC32();
+	    crc.update(buf);
+	    if((int)crc.getValue() != sum)
+		return(false);
+	    DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf));
+	    if(in.read() != 'I')
+		return(false);
+	    for(int i = 0, n = in.readInt(); i < n; i++) {
+		String key = in.readUTF();
+		index.put(key, new Entry(in.readLong(), in.readInt()));
+	    }
+	    garbage = in.readLong();
+	    end = sz;
+	    return(true);
+	}
+
+	/* Recovers the index from the records themselves, up to the
+	 * first incomplete one. */
+	private long scan(RandomAccessFile fp) throws IOException {
+	    long sz = fp.length(), pos = 0;
+	    CRC32 crc = new CRC32();
+	    while(pos < sz) {
+		fp.seek(pos);
+		try {
+		    int tag = fp.read();
+		    if(tag == 'I') {
+			for(int i = 0, n = fp.readInt(); i < n; i++) {
+			    fp.readUTF();
+			    fp.skipBytes(12);
+			}
+			pos = fp.getFilePointer() + 8 + 16;
+			continue;
+		    } else if(tag != 'R') {
+			break;
+		    }
+		    String key = fp.readUTF();
+		    int len = fp.readInt();
+		    long doff = fp.getFilePointer();
+		    if((len < 0) || (doff + len + 4 > sz))
+			break;
+		    byte[] data = new byte[len];
+		    fp.readFully(data);
+		    crc.reset();
+		    crc.update(data);
+		    if(fp.readInt() != (int)crc.getValue())
+			break;
+		    Entry prev = index.put(key, new Entry(doff, len));
+		    if(prev != null)
+			garbage += prev.len;
+		    pos = doff + len + 4;
+		} catch(EOFException e) {
+		    break;
+		}
+	    }
+	    return(pos);
+	}
+
+	synchronized byte[] get(String key) throws IOException {
+	    load();
+	    Entry e = index.get(key);
+	    if(e == null)
+		return(null);
+	    RandomAccessFile fp = file();
+	    byte[] ret = new byte[e.len];
+	    fp.seek(e.off);
+	    fp.readFully(ret);
+	    return(ret);
+	}
+
+	synchronized void put(String key, byte[] data) throws IOException {
+	    load();
+	    RandomAccessFile fp = file();
+	    ByteArrayOutputStream buf = new ByteArrayOutputStream(data.length + key.length() + 16);
+	    DataOutputStream out = new DataOutputStream(buf);
+	    out.write('R');
+	    out.writeUTF(key);
+	    out.writeInt(data.length);
+	    long doff = end + buf.size();
+	    out.write(data);
+	    CRC32 crc = new CRC32();
+	    crc.update(data);
+	    out.writeInt((int)crc.getValue());
+	    fp.seek(end);
+	    fp.write(buf.toByteArray());
+	    end += buf.size();
+	    Entry prev = index.put(key, new Entry(doff, data.length));
+	    if(prev != null)
+		garbage += prev.len;
+	    dirty = true;
+	}
+
+	private byte[] indexblock() throws IOException {
+	    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	    DataOutputStream out = new DataOutputStream(buf);
+	    out.write('I');
+	    out.writeInt(index.size());
+	    for(Map.Entry<String, Entry> ent : index.entrySet()) {
+		out.writeUTF(ent.getKey());
+		out.writeLong(ent.getValue().off);
+		out.writeInt(ent.getValue().len);
+	    }
+	    out.writeLong(garbage);
+	    return(buf.toByteArray());
+	}
+
+	private void writeindex(RandomAccessFile fp, long at) throws IOException {
+	    byte[] idx = indexblock();
+	    CRC32 crc = new CRC32();
+	    crc.update(idx);
+	    fp.seek(at);
+	    fp.write(idx);
+	    fp.writeLong(at);
+	    fp.writeInt((int)crc.getValue());
+	    fp.writeInt(TRAILSIG);
+	}
+
+	/* Superseded data is dropped by writing the live entries to
+	 * a new file and renaming it over the old one. */
+	private void compact() throws IOException {
+	    File tmp = new File(base, path.getName() + ".new");
+	    Map<String, Entry> nidx = new HashMap<>();
+	    try(RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+		out.setLength(0);
+		CRC32 crc = new CRC32();
+		for(Map.Entry<String, Entry> ent : index.entrySet()) {
+		    Entry e = ent.getValue();
+		    byte[] data = new byte[e.len];
+		    fp.seek(e.off);
+		    fp.readFully(data);
+		    out.write('R');
+		    out.writeUTF(ent.getKey());
+		    out.writeInt(data.length);
+		    nidx.put(ent.getKey(), new Entry(out.getFilePointer(), data.length));
+		    out.write(data);
+		    crc.reset();
+		    crc.update(data);
+		    out.writeInt((int)crc.getValue());
+		}
+		index.clear();
+		index.putAll(nidx);
+		garbage = 0;
+		end = out.getFilePointer();
+		writeindex(out, end);
+		end = out.getFilePointer();
+		out.getFD().sync();
+	    }
+	    fp.close();
+	    fp = null;
+	    if(!tmp.renameTo(path)) {
+		path.delete();
+		if(!tmp.renameTo(path))
+		    throw(new IOException("could not replace " + path));
+	    }
+	}
+
+	synchronized void commit() throws IOException {
+	    if(dirty) {
+		/* A failed commit is not retried until the next
+		 * update; the records themselves are recoverable. */
+		dirty = false;
+		RandomAccessFile fp = file();
+		if((garbage > (1 << 20)) && (garbage > end / 2)) {
+		    compact();
+		} else {
+		    writeindex(fp, end);
+		    end = fp.getFilePointer();
+		    fp.setLength(end);
+		    fp.getFD().sync();
+		}
+	    } else if(!used && (fp != null)) {
+		fp.close();
+		fp = null;
+	    }
+	    used = false;
+	}
+
+	synchronized boolean putIfAbsent(String key, byte[] data) throws IOException {
+	    load();
+	    if(index.containsKey(key))
+		return(false);
+	    put(key, data);
+	    return(true);
+	}
+
+	synchronized boolean has(String key) throws IOException {
+	    load();
+	    return(index.containsKey(key));
+	}
+
+	/* Only drops the key from the index; should the index ever have
+	 * to be recovered by scanning, the record comes back. */
+	synchronized void remove(String key) throws IOException {
+	    load();
+	    Entry prev = index.remove(key);
+	    if(prev != null) {
+		garbage += prev.len;
+		dirty = true;
+	    }
+	}
+    }
+
+    private Container container(String bucket) {
+	synchronized(containers) {
+	    Container ret = containers.get(bucket);
+	    if(ret == null)
+		containers.put(bucket, ret = new Container(bucket));
+	    return(ret);
+	}
+    }
+
+    public InputStream fetch(String bucket, String key) throws IOException {
+	byte[] data = container(bucket).get(key);
+	if(data == null)
+	    throw(new FileNotFoundException(key));
+	return(new ByteArrayInputStream(data));
+    }
+
+    public boolean has(String bucket, String key) throws IOException {
+	return(container(bucket).has(key));
+    }
+
+    public void remove(String bucket, String key) throws IOException {
+	container(bucket).remove(key);
+    }
+
+    public void put(String bucket, String key, byte[] data) throws IOException {
+	container(bucket).put(key, data);
+    }
+
+    /* For migrating old data, which must not replace anything that
+     * has been stored in the meantime. */
+    public boolean putIfAbsent(String bucket, String key, byte[] data) throws IOException {
+	return(container(bucket).putIfAbsent(key, data));
+    }
+
+    public OutputStream store(String bucket, String key) {
+	return(new ByteArrayOutputStream() {
+		public void close() throws IOException {
+		    put(bucket, key, toByteArray());
+		}
+	    });
+    }
+
+    public boolean dirty() {
+	synchronized(containers) {
+	    for(Container c : containers.values()) {
+		if(c.dirty)
+		    return(true);
+	    }
+	}
+	return(false);
+    }
+
+    /* Writes out the indices of all changed containers and syncs
+     * them, and closes the files of those left unused since the
+     * last commit. */
+    public void commit() {
+	Collection<Container> cs;
+	synchronized(containers) {
+	    cs = new ArrayList<>(containers.values());
+	}
+	for(Container c : cs) {
+	    try {
+		c.commit();
+	    } catch(IOException e) {
+		new Warning(e, "could not commit map container " + c.path).issue();
+	    }
+	}
+    }
+
+    public boolean migrated() {
+	return(migrated);
+    }
+
+    public void setmigrated() throws IOException {
+	new FileOutputStream(new File(base, "migrated")).close();
+	this.migrated = true;
+    }
+
+    public static void main(String[] args) throws IOException {
+	if((args.length < 1) || !args[0].equals("bench")) {
+	    System.err.println("usage: MapPack bench [ENTRIES]");
+	    System.exit(1);
+	}
+	int n = (args.length > 1) ? Integer.parseInt(args[1]) : 10000;
+	byte[] data = new byte[6000];
+	new Random(0).nextBytes(data);
+	MapPack pack = new MapPack(new File(HashDirCache.findbase("bench"), "pack-" + System.currentTimeMillis()));
+	pack.base.mkdirs();
+	HashDirCache dir = new HashDirCache("mapbench-" + System.currentTimeMillis(), "bench");
+	long st = System.nanoTime();
+	for(int i = 0; i < n; i++) {
+	    try(OutputStream fp = dir.store(String.format("map/grid-%x", i))) {
+		fp.write(data);
+	    }
+	}
+	double dw = (System.nanoTime() - st) * 1e-9;
+	st = System.nanoTime();
+	for(int i = 0; i < n; i++)
+	    pack.put("g" + (i & 63), String.format("grid-%x", i), data);
+	pack.commit();
+	double pw = (System.nanoTime() - st) * 1e-9;
+	System.out.printf("store: %d entries, per-entry cache %.0f/s, containers %.0f/s\n", n, n / dw, n / pw);
+	st = System.nanoTime();
+	for(int i = 0; i < n; i++)
+	    Utils.readall(dir.fetch(String.format("map/grid-%x", i)));
+	double dr = (System.nanoTime() - st) * 1e-9;
+	MapPack reopened = new MapPack(pack.base);
+	st = System.nanoTime();
+	reopened.fetch("g0", "grid-0").close();
+	double po = (System.nanoTime() - st) * 1e-9;
+	for(int i = 1; i < n; i++)
+	    Utils.readall(reopened.fetch("g" + (i & 63), String.format("grid-%x", i)));
+	double pr = (System.nanoTime() - st) * 1e-9;
+	System.out.printf("fetch: per-entry cache %.0f/s, containers %.0f/s (first fetch after open %.1fms)\n", n / dr, n / pr, po * 1000);
+	System.out.printf("bench data left in %s\n", HashDirCache.findbase("bench"));
+    }
+}
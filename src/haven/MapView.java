@@ -680,6 +680,7 @@ public class MapView extends PView implements DTarget, Console.Directory {
 	void tick() {
 	    super.tick();
 	    if(area != null) {
+		map.focus(area.ul.add(view, view), area);
 		main.tick();
 		flavobjs.tick();
 	    }
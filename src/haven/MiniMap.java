@@ -29,6 +29,8 @@ package haven;
 import java.awt.*;
 import java.util.*;
 import java.util.List;
+import java.util.function.*;
+import java.awt.image.BufferedImage;
 
 import haven.MapFile.Segment;
 import haven.MapFile.DataGrid;
@@ -331,6 +333,7 @@ public class MiniMap extends Widget {
 	public final Segment seg;
 	public final Coord sc;
 	public final Area mapext;
+	public final int lvl;
 	public final Indir<? extends DataGrid> gref;
 	private DataGrid cgrid = null;
 	private Tex img = null;
@@ -340,22 +343,74 @@ public class MiniMap extends Widget {
 	    this.file = seg.file();
 	    this.seg = seg;
 	    this.sc = sc;
+	    this.lvl = lvl;
 	    this.gref = gref;
 	    mapext = Area.sized(sc.mul(cmaps.mul(1 << lvl)), cmaps.mul(1 << lvl));
 	}
 
+	/* Uploaded images are kept around past the display grids
+	 * that made them, so that panning or zooming back does not
+	 * render them over again. Like the stored images, they are
+	 * only reused for the same stamp of the data drawn. */
+	private static final Map<Pair<Long, MapFile.ZoomCoord>, Pair<Long, Tex>> texcache =
+	    new LinkedHashMap<Pair<Long, MapFile.ZoomCoord>, Pair<Long, Tex>>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Pair<Long, MapFile.ZoomCoord>, Pair<Long, Tex>> eldest) {
+		    return(size() > 256);
+		}
+	    };
+
+	private Pair<Long, MapFile.ZoomCoord> ckey() {
+	    return(new Pair<>(seg.id, new MapFile.ZoomCoord(lvl, sc)));
+	}
+
+	private Tex cached(long stamp) {
+	    synchronized(texcache) {
+		Pair<Long, Tex> ent = texcache.get(ckey());
+		return(((ent != null) && (ent.a == stamp)) ? ent.b : null);
+	    }
+	}
+
+	private Tex cache(long stamp, BufferedImage img) {
+	    Tex ret = new TexI(img);
+	    synchronized(texcache) {
+		texcache.put(ckey(), new Pair<>(stamp, ret));
+	    }
+	    return(ret);
+	}
+
+	private Tex render(long stamp, Supplier<BufferedImage> render) {
+	    Tex hit = cached(stamp);
+	    if(hit != null)
+		return(hit);
+	    BufferedImage img = file.loadimg(seg.id, lvl, sc, stamp);
+	    if(img == null) {
+		img = render.get();
+		file.saveimg(seg.id, lvl, sc, stamp, img);
+	    }
+	    return(cache(stamp, img));
+	}
+
 	public Tex img() {
 	    DataGrid grid = gref.get();
 	    if(grid != cgrid) {
 		if(nextimg != null)
 		    nextimg.cancel();
+		nextimg = null;
 		if(grid instanceof MapFile.ZoomGrid) {
-		    nextimg = Defer.later(() -> new TexI(grid.render(sc.mul(cmaps))));
+		    long stamp = grid.stamp();
+		    Tex hit = cached(stamp);
+		    if(hit != null)
+			img = hit;
+		    else
+			nextimg = Defer.later(() -> render(stamp, () -> grid.render(sc.mul(cmaps))));
 		} else {
+		    /* The stamp of a base-level image covers its
+		     * neighbours as well, so checking for a cached one
+		     * needs the view. */
 		    nextimg = Defer.later(new Defer.Callable<Tex>() {
 			    MapFile.View view = new MapFile.View(seg);
 
-			    public TexI call() {
+			    public Tex call() {
 				try(Locked lk = new Locked(file.lock.readLock())) {
 				    for(int y = -1; y <= 1; y++) {
 					for(int x = -1; x <= 1; x++) {
@@ -363,7 +418,7 @@ public class MiniMap extends Widget {
 					}
 				    }
 				    view.fin();
-				    return(new TexI(MapSource.drawmap(view, Area.sized(sc.mul(cmaps), cmaps))));
+				    return(render(view.stamp(), () -> MapSource.drawmap(view, Area.sized(sc.mul(cmaps), cmaps))));
 				}
 			    }
 			});
@@ -384,10 +439,13 @@ public class MiniMap extends Widget {
 	    if(remark && (markerseq != file.markerseq)) {
 		if(file.lock.readLock().tryLock()) {
 		    try {
+			Map<Marker, DisplayMarker> prev = new HashMap<>();
+			for(DisplayMarker dm : markers)
+			    prev.put(dm.m, dm);
 			ArrayList<DisplayMarker> marks = new ArrayList<>();
-			for(Marker mark : file.markers) {
-			    if((mark.seg == this.seg.id) && mapext.contains(mark.tc))
-				marks.add(new DisplayMarker(mark));
+			for(Marker mark : file.markers(this.seg.id, mapext)) {
+			    DisplayMarker dm = prev.get(mark);
+			    marks.add(((dm != null) && dm.tip.text.equals(mark.nm)) ? dm : new DisplayMarker(mark));
 			}
 			marks.trimToSize();
 			markers = (marks.size() == 0) ? Collections.emptyList() : marks;
@@ -426,6 +484,8 @@ public class MiniMap extends Widget {
 			nd[next.ri(c)] = display[dgext.ri(c)];
 		}
 	    }
+	    if((zoomlevel > 0) && ((loc.seg != dseg) || (dlvl == 0)))
+		file.buildzoom(loc.seg.id);
 	    display = nd;
 	    dseg = loc.seg;
 	    dlvl = zoomlevel;
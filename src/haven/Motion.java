@@ -0,0 +1,151 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+import java.util.*;
+
+/* Advances the linear movements of an OCache's gobs in a single pass
+ * per tick, keeping their state in parallel arrays. Each pass also
+ * samples the terrain once per moving gob, and the resulting position
+ * is cached on the LinMove for any reader until the next pass, so
+ * that getc() need not touch the map at all. A LinMove that is not
+ * (or no longer) registered keeps its state in its own fields. */
+public class Motion {
+    public final Glob glob;
+    /* Bumped by each pass, for movements that cache their positions
+     * themselves (see Homing and Following). */
+    public volatile int frame = 0;
+    private int n = 0;
+    private LinMove[] mv = new LinMove[64];
+    private double[] sx = new double[64], sy = new double[64], vx = new double[64], vy = new double[64];
+    private double[] t = new double[64], lt = new double[64], e = new double[64];
+    private boolean[] ts = new boolean[64];
+
+    public Motion(Glob glob) {
+	this.glob = glob;
+    }
+
+    private void grow() {
+	int nl = mv.length * 2;
+	mv = Arrays.copyOf(mv, nl);
+	sx = Arrays.copyOf(sx, nl); sy = Arrays.copyOf(sy, nl);
+	vx = Arrays.copyOf(vx, nl); vy = Arrays.copyOf(vy, nl);
+	t = Arrays.copyOf(t, nl); lt = Arrays.copyOf(lt, nl); e = Arrays.copyOf(e, nl);
+	ts = Arrays.copyOf(ts, nl);
+    }
+
+    synchronized void add(LinMove m) {
+	if(m.slot >= 0)
+	    return;
+	if(n == mv.length)
+	    grow();
+	int i = n++;
+	mv[i] = m;
+	sx[i] = m.s.x; sy[i] = m.s.y;
+	vx[i] = m.v.x; vy[i] = m.v.y;
+	t[i] = m.t; lt[i] = m.lt; e[i] = m.e; ts[i] = m.ts;
+	m.slot = i;
+    }
+
+    private void remove(int i) {
+	LinMove m = mv[i];
+	m.t = t[i]; m.lt = lt[i]; m.e = e[i]; m.ts = ts[i];
+	m.slot = -1;
+	m.cached = null;
+	int l = --n;
+	if(i != l) {
+	    mv[i] = mv[l];
+	    sx[i] = sx[l]; sy[i] = sy[l];
+	    vx[i] = vx[l]; vy[i] = vy[l];
+	    t[i] = t[l]; lt[i] = lt[l]; e[i] = e[l]; ts[i] = ts[l];
+	    mv[i].slot = i;
+	}
+	mv[l] = null;
+    }
+
+    synchronized double t(LinMove m) {
+	return((m.slot < 0) ? m.t : t[m.slot]);
+    }
+
+    synchronized double e(LinMove m) {
+	return((m.slot < 0) ? m.e : e[m.slot]);
+    }
+
+    synchronized void sett(LinMove m, double nt) {
+	if(m.slot < 0) {
+	    m.sett0(nt);
+	    return;
+	}
+	int i = m.slot;
+	lt[i] = nt;
+	if(nt > t[i]) {
+	    t[i] = nt;
+	    ts[i] = false;
+	}
+    }
+
+    synchronized void sete(LinMove m, double ne) {
+	if(m.slot < 0)
+	    m.e = ne;
+	else
+	    e[m.slot] = ne;
+    }
+
+    public synchronized int size() {
+	return(n);
+    }
+
+    public void tick(double dt) {
+	MCache map = glob.map;
+	synchronized(this) {
+	    for(int i = 0; i < n; i++) {
+		LinMove m = mv[i];
+		if(m.gob.disposed() || (m.gob.getattr(Moving.class) != m)) {
+		    remove(i--);
+		    continue;
+		}
+		if(!ts[i]) {
+		    double nt = t[i] + (dt * 0.9);
+		    if(!Double.isNaN(e[i]) && (nt > e[i])) {
+			nt = e[i];
+		    } else if(nt > lt[i] + LinMove.MAXOVER) {
+			nt = lt[i] + LinMove.MAXOVER;
+			ts[i] = true;
+		    }
+		    t[i] = nt;
+		}
+		double x = sx[i] + (vx[i] * t[i]), y = sy[i] + (vy[i] * t[i]);
+		try {
+		    m.cached = new Coord3f((float)x, (float)y, (float)map.getcz(x, y));
+		} catch(Loading l) {
+		    m.cached = null;
+		}
+	    }
+	}
+	frame++;
+    }
+}
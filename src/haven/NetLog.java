@@ -0,0 +1,176 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+
+package haven;
+
+import java.io.*;
+
+/* Compact binary log of the datagrams exchanged by a Session. After
+ * an eight-byte magic and the capture start time in milliseconds,
+ * each record is a direction byte, the millisecond offset from
+ * capture start as an int32, and a uint16-length prefixed datagram
+ * (including its type byte). Outbound session handshakes carry the
+ * user's name and auth cookie, so only their type byte is kept, and
+ * the session key sent by the server in a rel is zeroed out. */
+public class NetLog {
+    public static final byte[] magic = "HNetLog1".getBytes(Utils.ascii);
+    public static final int IN = 0, OUT = 1;
+
+    public static class Record {
+	public final int dir;
+	public final long time;
+	public final byte[] data;
+
+	public Record(int dir, long time, byte[] data) {
+	    this.dir = dir;
+	    this.time = time;
+	    this.data = data;
+	}
+
+	public int type() {
+	    return((data.length > 0) ? (data[0] & 0xff) : -1);
+	}
+    }
+
+    public static class Writer implements Closeable {
+	private final DataOutputStream out;
+	public final long start;
+	private boolean closed = false;
+
+	public Writer(OutputStream out) throws IOException {
+	    this.out = new DataOutputStream(new BufferedOutputStream(out, 65536));
+	    this.start = System.currentTimeMillis();
+	    this.out.write(magic);
+	    this.out.writeLong(start);
+	}
+
+	public synchronized void record(int dir, byte[] buf, int off, int len) {
+	    if(closed)
+		return;
+	    if((dir == OUT) && (len > 0) && (buf[off] == Session.MSG_SESS))
+		len = 1;
+	    if((dir == IN) && (len > 0) && (buf[off] == Session.MSG_REL)) {
+		byte[] blanked = blanksesskey(buf, off, len);
+		if(blanked != null) {
+		    buf = blanked;
+		    off = 0;
+		}
+	    }
+	    try {
+		out.writeByte(dir);
+		out.writeInt((int)(System.currentTimeMillis() - start));
+		out.writeShort(len);
+		out.write(buf, off, len);
+	    } catch(IOException e) {
+		new Warning(e, "could not write network capture, disabling").issue();
+		close();
+	    }
+	}
+
+	/* Returns a blanked copy, or null if there is no session key. */
+	private static byte[] blanksesskey(byte[] buf, int off, int len) {
+	    byte[] ret = null;
+	    int p = 3, end = len;
+	    while(p < end) {
+		int type = buf[off + p++] & 0xff;
+		int mlen;
+		if((type & 0x80) != 0) {
+		    if(p + 2 > end)
+			break;
+		    type &= 0x7f;
+		    mlen = Utils.uint16d(buf, off + p);
+		    p += 2;
+		} else {
+		    mlen = end - p;
+		}
+		mlen = Math.min(mlen, end - p);
+		if(type == RMessage.RMSG_SESSKEY) {
+		    if(ret == null)
+			ret = java.util.Arrays.copyOfRange(buf, off, off + len);
+		    java.util.Arrays.fill(ret, p, p + mlen, (byte)0);
+		}
+		p += mlen;
+	    }
+	    return(ret);
+	}
+
+	public synchronized void close() {
+	    if(closed)
+		return;
+	    closed = true;
+	    try {
+		out.close();
+	    } catch(IOException e) {
+	    }
+	}
+    }
+
+    public static class Reader implements Closeable {
+	private final DataInputStream in;
+	public final long start;
+
+	public Reader(InputStream in) throws IOException {
+	    this.in = new DataInputStream(new BufferedInputStream(in, 65536));
+	    byte[] buf = new byte[magic.length];
+	    this.in.readFully(buf);
+	    if(!java.util.Arrays.equals(buf, magic))
+		throw(new IOException("not a network capture"));
+	    this.start = this.in.readLong();
+	}
+
+	/* Returns null at end of log. A truncated trailing record, as
+	 * left behind by a client that did not shut down cleanly, is
+	 * treated as the end. */
+	public Record next() throws IOException {
+	    int dir = in.read();
+	    if(dir < 0)
+		return(null);
+	    try {
+		long time = in.readInt() & 0xffffffffL;
+		byte[] data = new byte[in.readUnsignedShort()];
+		in.readFully(data);
+		return(new Record(dir, time, data));
+	    } catch(EOFException e) {
+		return(null);
+	    }
+	}
+
+	public void close() throws IOException {
+	    in.close();
+	}
+    }
+
+    public static Writer create(String spec) {
+	File path = new File(String.format(spec, System.currentTimeMillis()));
+	try {
+	    return(new Writer(new FileOutputStream(path)));
+	} catch(IOException e) {
+	    new Warning(e, "could not open network capture " + path).issue();
+	    return(null);
+	}
+    }
+}
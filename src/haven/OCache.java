@@ -58,6 +58,8 @@ public class OCache implements Iterable<Gob> {
     /* XXX: Use weak refs */
     private Collection<Collection<Gob>> local = new LinkedList<Collection<Gob>>();
     private HashMultiMap<Long, Gob> objs = new HashMultiMap<Long, Gob>();
+    private final GobGrid grid = new GobGrid();
+    public final Motion motion;
     private Glob glob;
     private final Collection<ChangeCallback> cbs = new WeakList<ChangeCallback>();
 
@@ -68,6 +70,7 @@ public class OCache implements Iterable<Gob> {
 
     public OCache(Glob glob) {
 	this.glob = glob;
+	this.motion = new Motion(glob);
 	Radar.clean();
 	callback(Radar.CHANGED);
 	callback(Gob.CHANGED);
@@ -86,6 +89,15 @@ public class OCache implements Iterable<Gob> {
     
     public synchronized Stream<Gob> stream() {return Stream.of(objs.values().toArray(new Gob[0]));}
 
+    /* Spatial queries over registered (non-local) gobs, by Gob.rc. */
+    public List<Gob> within(Coord2d c, double r) {return(grid.within(c, r));}
+    public List<Gob> inArea(Area a) {return(grid.inArea(a));}
+    public List<Gob> nearest(Coord2d c, int k, java.util.function.Predicate<? super Gob> filter) {return(grid.nearest(c, k, filter));}
+
+    void moved(Gob ob) {
+	grid.moved(ob);
+    }
+
     public synchronized void callback(ChangeCallback cb) {
 	cbs.add(cb);
     }
@@ -100,6 +112,7 @@ public class OCache implements Iterable<Gob> {
 	    synchronized(this) {
 		cbs = new ArrayList<>(this.cbs);
 		objs.put(ob.id, ob);
+		grid.add(ob);
 	    }
 	    for(ChangeCallback cb : cbs) {
 		cb.added(ob);
@@ -114,6 +127,8 @@ public class OCache implements Iterable<Gob> {
 	    old = objs.remove(ob.id, ob);
 	    if((old != null) && (old != ob))
 		throw(new RuntimeException(String.format("object %d removed wrong object", ob.id)));
+	    if(old != null)
+		grid.remove(old);
 	    cbs = new ArrayList<>(this.cbs);
 	}
 	if(old != null) {
@@ -125,6 +140,7 @@ public class OCache implements Iterable<Gob> {
     }
 
     public void ctick(double dt) {
+	motion.tick(dt);
 	ArrayList<Gob> copy = new ArrayList<Gob>();
 	synchronized(this) {
 	    for(Gob g : this)
@@ -287,9 +303,9 @@ public class OCache implements Iterable<Gob> {
 	else
 	    lm.sett(t);
 	if(e >= 0)
-	    lm.e = e;
+	    lm.sete(e);
 	else
-	    lm.e = Double.NaN;
+	    lm.sete(Double.NaN);
     }
     public Delta linstep(Message msg) {
 	double t, e;
@@ -719,7 +735,10 @@ public class OCache implements Iterable<Gob> {
 	public int frame;
 	public boolean nremoved, added, gremoved, virtual;
 	public Gob gob;
+	/* Only set while a delta has hit a Loading and is being waited
+	 * on; otherwise the object is applied in batches by drain(). */
 	public Loader.Future<?> applier;
+	private boolean queued;
 
 	public GobInfo(long id, int frame) {
 	    this.id = id;
@@ -744,17 +763,34 @@ public class OCache implements Iterable<Gob> {
 		    }
 		}
 		while(true) {
-		    Delta d;
+		    Delta[] batch;
 		    synchronized(this) {
-			if((d = pending.peek()) == null)
+			if(pending.isEmpty())
 			    break;
+			batch = pending.toArray(new Delta[0]);
 		    }
-		    synchronized(gob) {
-			d.apply(gob);
-		    }
-		    synchronized(this) {
-			if((pending.poll()) != d)
-			    throw(new RuntimeException());
+		    int done = 0;
+		    try {
+			synchronized(gob) {
+			    for(Delta d : batch) {
+				d.apply(gob);
+				done++;
+			    }
+			}
+		    } catch(Loading l) {
+			throw(l);
+		    } catch(RuntimeException e) {
+			/* Drop the failing delta, so that it does not
+			 * block the ones after it. */
+			done++;
+			throw(e);
+		    } finally {
+			synchronized(this) {
+			    for(int i = 0; i < done; i++) {
+				if((pending.poll()) != batch[i])
+				    throw(new RuntimeException());
+			    }
+			}
 		    }
 		}
 		if(!added) {
@@ -769,11 +805,27 @@ public class OCache implements Iterable<Gob> {
 	    }
 	}
 
+	private void applybatch() {
+	    synchronized(this) {
+		queued = false;
+		if(applier != null)
+		    return;
+	    }
+	    try {
+		apply();
+	    } catch(Loading l) {
+		synchronized(this) {
+		    applier = glob.loader.defer(this::apply, null);
+		}
+	    }
+	}
+
 	public void checkdirty(boolean interrupt) {
 	    synchronized(this) {
 		if(applier == null) {
-		    if(nremoved ? (added && !gremoved) : (!added || !pending.isEmpty())) {
-			applier = glob.loader.defer(this::apply, null);
+		    if(!queued && (nremoved ? (added && !gremoved) : (!added || !pending.isEmpty()))) {
+			queued = true;
+			enqueue(this);
 		    }
 		} else if(interrupt) {
 		    applier.restart();
@@ -782,7 +834,67 @@ public class OCache implements Iterable<Gob> {
 	}
     }
 
+    private final Collection<GobInfo> dirty = new LinkedHashSet<>();
+    private Loader.Future<?> drainer = null;
+
+    private void enqueue(GobInfo ng) {
+	synchronized(dirty) {
+	    dirty.add(ng);
+	    if(drainer == null)
+		drainer = glob.loader.defer(this::drain, null);
+	}
+    }
+
+    /* Applies everything that has become dirty since the last drain
+     * in a single loader task, rather than one task per object. */
+    private void drain() {
+	GobInfo[] batch = null;
+	int i = 0;
+	boolean done = false;
+	try {
+	    while(true) {
+		synchronized(dirty) {
+		    if(dirty.isEmpty()) {
+			drainer = null;
+			done = true;
+			return;
+		    }
+		    batch = dirty.toArray(new GobInfo[0]);
+		    dirty.clear();
+		}
+		for(i = 0; i < batch.length; i++) {
+		    GobInfo ng = batch[i];
+		    try {
+			ng.applybatch();
+		    } catch(RuntimeException e) {
+			new Warning(e, "could not apply object delta for " + ng.id).issue();
+			synchronized(ng) {
+			    ng.checkdirty(false);
+			}
+		    }
+		}
+	    }
+	} finally {
+	    if(!done) {
+		/* Leaving on an Error; hand what is left to a new
+		 * drain rather than stalling all objects. */
+		synchronized(dirty) {
+		    for(i++; (batch != null) && (i < batch.length); i++)
+			dirty.add(batch[i]);
+		    drainer = dirty.isEmpty() ? null : glob.loader.defer(this::drain, null);
+		}
+	    }
+	}
+    }
+
     private final Map<Long, GobInfo> netinfo = new HashMap<>();
+    /* Removed objects are kept as tombstones for a while, so that
+     * late or resent deltas from before the removal are still
+     * recognized as stale. Once the server can no longer be resending
+     * them, the tombstones are reclaimed in removal order. */
+    private final ArrayDeque<Pair<GobInfo, Long>> tombs = new ArrayDeque<>();
+    private int ntomb = 0;
+    private long nreclaimed = 0;
 
     private GobInfo netremove(long id, int frame) {
 	synchronized(netinfo) {
@@ -790,14 +902,45 @@ public class OCache implements Iterable<Gob> {
 	    if((ng == null) || (ng.frame > frame))
 		return(null);
 	    synchronized(ng) {
-		/* XXX: Clean up removed objects */
-		ng.nremoved = true;
+		if(!ng.nremoved) {
+		    ng.nremoved = true;
+		    ntomb++;
+		    tombs.add(new Pair<>(ng, System.currentTimeMillis() + (Config.nettomb * 1000L)));
+		}
 		ng.checkdirty(true);
 	    }
 	    return(ng);
 	}
     }
 
+    private void reclaim(long now) {
+	Pair<GobInfo, Long> t;
+	while(((t = tombs.peek()) != null) && (t.b <= now)) {
+	    tombs.poll();
+	    GobInfo ng = t.a;
+	    if(netinfo.get(ng.id) != ng)
+		continue;
+	    synchronized(ng) {
+		if(!ng.nremoved)
+		    continue;
+		if((ng.applier != null) || ng.queued || (ng.added && !ng.gremoved)) {
+		    /* Still being removed from the scene; check back later. */
+		    tombs.add(new Pair<>(ng, now + 1000));
+		    continue;
+		}
+	    }
+	    netinfo.remove(ng.id);
+	    ntomb--;
+	    nreclaimed++;
+	}
+    }
+
+    public String netstats() {
+	synchronized(netinfo) {
+	    return(String.format("%,d live, %,d removed, %,d reclaimed", netinfo.size() - ntomb, ntomb, nreclaimed));
+	}
+    }
+
     private GobInfo netget(long id, int frame) {
 	synchronized(netinfo) {
 	    GobInfo ng = netinfo.get(id);
@@ -805,6 +948,7 @@ public class OCache implements Iterable<Gob> {
 		if(ng.frame >= frame)
 		    return(null);
 		netinfo.remove(id);
+		ntomb--;
 		ng = null;
 	    }
 	    if(ng == null) {
@@ -836,6 +980,7 @@ public class OCache implements Iterable<Gob> {
 	if(hasrem)
 	    return(removed);
 	synchronized(netinfo) {
+	    reclaim(System.currentTimeMillis());
 	    if((fl & 1) != 0)
 		netremove(id, frame - 1);
 	    GobInfo ng = netget(id, frame);
@@ -0,0 +1,587 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.net.URI;
+
+/* A resource cache keeping its entries in a few large append-only
+ * pack files, found through an in-memory index that is persisted
+ * next to them and read through memory maps. Every record carries a
+ * checksum, so whatever the persisted index does not cover, such as
+ * records written just before a crash or by another client sharing
+ * the cache, is recovered by scanning the pack tails. Superseded
+ * records are dropped by compaction when the cache is opened by a
+ * single client. */
+public class PackCache implements ResCache {
+    public static final long PACKSZ = 1L << 28;
+    private static final byte[] IDXSIG = "Haven PackIndex1".getBytes(Utils.ascii);
+    private static final int SAVEINT = 256;
+    public final URI id;
+    private final File base;
+    private final ResCache back;
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+    private volatile Pack[] packs = {};
+    private final RandomAccessFile lockf;
+    private FileLock user;
+    private int gen, unsaved;
+    private long live, garbage;
+
+    private static class Entry {
+	final int pack, len;
+	final long off;
+
+	Entry(int pack, long off, int len) {
+	    this.pack = pack;
+	    this.off = off;
+	    this.len = len;
+	}
+    }
+
+    private static class Pack {
+	final int no;
+	final RandomAccessFile fp;
+	long end = 0;
+	volatile MappedByteBuffer map = null;
+
+	Pack(int no, File path) throws IOException {
+	    this.no = no;
+	    this.fp = new RandomAccessFile(path, "rw");
+	}
+
+	ByteBuffer slice(long off, int len) throws IOException {
+	    MappedByteBuffer map = this.map;
+	    if((map == null) || (off + len > map.capacity())) {
+		synchronized(this) {
+		    if(((map = this.map) == null) || (off + len > map.capacity()))
+			this.map = map = uninterrupted(() -> fp.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, fp.length()));
+		}
+	    }
+	    ByteBuffer ret = map.duplicate();
+	    ret.position((int)off);
+	    ret.limit((int)(off + len));
+	    return(ret);
+	}
+    }
+
+    private interface IO<T> {
+	public T run() throws IOException;
+    }
+
+    /* An interrupted thread entering a channel operation would close
+     * the channel for everyone, so keep the interruption aside. */
+    private static <T> T uninterrupted(IO<T> op) throws IOException {
+	boolean intr = Thread.interrupted();
+	try {
+	    return(op.run());
+	} finally {
+	    if(intr)
+		Thread.currentThread().interrupt();
+	}
+    }
+
+    public PackCache(URI id, File base, ResCache back) throws IOException {
+	this.id = id;
+	this.base = base;
+	this.back = back;
+	this.lockf = new RandomAccessFile(new File(base, "lock"), "rw");
+	open();
+	Runtime.getRuntime().addShutdownHook(new HackThread(() -> {
+		    try {
+			synchronized(PackCache.this) {
+			    if(unsaved > 0)
+				saveindex();
+			}
+		    } catch(IOException e) {
+		    }
+	}, "Pack index saver"));
+    }
+
+    private static final Map<URI, PackCache> current = new HashMap<>();
+    public static PackCache get(URI id, ResCache back) throws IOException {
+	synchronized(current) {
+	    PackCache ret = current.get(id);
+	    if(ret == null) {
+		long h = 0;
+		for(int i = 0, n = id.toString().length(); i < n; i++)
+		    h = (h * 31) + id.toString().charAt(i);
+		File base = new File(HashDirCache.findbase("packs"), String.format("%016x", h));
+		if(!base.isDirectory() && !base.mkdirs())
+		    throw(new IOException("could not create " + base));
+		current.put(id, ret = new PackCache(id, base, back));
+	    }
+	    return(ret);
+	}
+    }
+
+    /* Entries missing from the pack cache are taken over from the
+     * hash-directory cache of the same identity as they are asked
+     * for, so switching over does not start out cold. */
+    public static PackCache create() {
+	try {
+	    URI id;
+	    if(Config.cachebase != null)
+		id = Config.cachebase.toURI();
+	    else if(Config.resurl != null)
+		id = Config.resurl.toURI();
+	    else
+		id = new URI("urn:haven-cache:default");
+	    return(get(id, HashDirCache.get(id)));
+	} catch(Exception e) {
+	    new Warning(e, "could not open pack cache").issue();
+	    return(null);
+	}
+    }
+
+    private File packfile(int gen, int no) {
+	return(new File(base, String.format("%d-%d.pack", gen, no)));
+    }
+
+    private int readgen() throws IOException {
+	try(BufferedReader fp = new BufferedReader(new InputStreamReader(new FileInputStream(new File(base, "gen")), Utils.ascii))) {
+	    return(Integer.parseInt(fp.readLine().trim()));
+	} catch(FileNotFoundException e) {
+	    return(0);
+	} catch(NumberFormatException | NullPointerException e) {
+	    throw(new IOException("corrupt generation file in " + base, e));
+	}
+    }
+
+    private void replace(File tmp, File path) throws IOException {
+	if(!tmp.renameTo(path)) {
+	    /* As in HashDirCache, there is no atomic rename on
+	     * Windows. */
+	    path.delete();
+	    if(!tmp.renameTo(path))
+		throw(new IOException("could not replace " + path));
+	}
+    }
+
+    private void writegen(int gen) throws IOException {
+	File tmp = new File(base, "gen.new");
+	try(Writer fp = new OutputStreamWriter(new FileOutputStream(tmp), Utils.ascii)) {
+	    fp.write(gen + "\n");
+	}
+	replace(tmp, new File(base, "gen"));
+    }
+
+    private FileLock applock() throws IOException {
+	return(uninterrupted(() -> lockf.getChannel().lock(1, 1, false)));
+    }
+
+    /* The first byte of the lock file is held shared by every client
+     * using the cache, so a client getting it exclusively knows that
+     * it is alone and may clean up and compact. */
+    private void open() throws IOException {
+	FileLock excl;
+	try {
+	    excl = uninterrupted(() -> lockf.getChannel().tryLock(0, 1, false));
+	} catch(OverlappingFileLockException e) {
+	    excl = null;
+	}
+	if(excl != null) {
+	    try {
+		load();
+		String cur = gen + "-";
+		for(File f : base.listFiles()) {
+		    if(f.getName().endsWith(".pack") && !f.getName().startsWith(cur))
+			f.delete();
+		}
+		if((garbage > (16 << 20)) && (garbage > live / 4))
+		    compact();
+	    } finally {
+		excl.release();
+	    }
+	}
+	user = uninterrupted(() -> lockf.getChannel().lock(0, 1, true));
+	if((excl == null) || (readgen() != gen))
+	    load();
+	if(unsaved > 0)
+	    saveindex();
+    }
+
+    private synchronized void load() throws IOException {
+	for(Pack p : packs)
+	    p.fp.close();
+	index.clear();
+	live = garbage = 0;
+	gen = readgen();
+	List<Pack> found = new ArrayList<>();
+	for(int i = 0; packfile(gen, i).exists(); i++)
+	    found.add(new Pack(i, packfile(gen, i)));
+	packs = found.toArray(new Pack[0]);
+	if(!readindex()) {
+	    index.clear();
+	    live = garbage = 0;
+	    for(Pack p : packs)
+		p.end = 0;
+	}
+	try(FileLock lk = applock()) {
+	    scantails();
+	}
+    }
+
+    private void apply(String name, Entry e) {
+	Entry old = (e == null) ? index.remove(name) : index.put(name, e);
+	if(old != null) {
+	    live -= old.len;
+	    garbage += old.len;
+	}
+	if(e != null)
+	    live += e.len;
+    }
+
+    /* Scans a pack from a known record boundary, returning the end
+     * of the last valid record. */
+    private long scan(Pack p, long pos) throws IOException {
+	RandomAccessFile fp = p.fp;
+	long sz = fp.length();
+	CRC32 crc = new CRC32();
+	byte[] buf = new byte[65536];
+	while(pos + 11 <= sz) {
+	    fp.seek(pos);
+	    crc.reset();
+	    int ver = fp.read();
+	    if(ver != 1)
+		break;
+	    int nmlen = fp.readUnsignedShort();
+	    if(pos + 11 + nmlen > sz)
+		break;
+	    byte[] nm = new byte[nmlen];
+	    fp.readFully(nm);
+	    int len = fp.readInt();
+	    long doff = pos + 7 + nmlen;
+	    if((len < -1) || (doff + Math.max(len, 0) + 4 > sz))
+		break;
+	    crc.update(ver);
+	    crc.update(nmlen >> 8); crc.update(nmlen & 0xff);
+	    crc.update(nm);
+	    for(int sh = 24; sh >= 0; sh -= 8)
+		crc.update(len >> sh);
+	    for(int left = Math.max(len, 0); left > 0;) {
+		int rv = fp.read(buf, 0, Math.min(left, buf.length));
+		if(rv < 0)
+		    throw(new EOFException());
+		crc.update(buf, 0, rv);
+		left -= rv;
+	    }
+	    if(fp.readInt() != (int)crc.getValue())
+		break;
+	    apply(new String(nm, Utils.utf8), (len < 0) ? null : new Entry(p.no, doff, len));
+	    pos = doff + Math.max(len, 0) + 4;
+	    unsaved++;
+	}
+	return(pos);
+    }
+
+    /* Must be called with the append lock held. */
+    private boolean scantails() throws IOException {
+	boolean ret = false;
+	for(int i = packs.length; packfile(gen, i).exists(); i++) {
+	    Pack[] np = Arrays.copyOf(packs, i + 1);
+	    np[i] = new Pack(i, packfile(gen, i));
+	    packs = np;
+	}
+	for(Pack p : packs) {
+	    if(p.fp.length() > p.end) {
+		p.end = scan(p, p.end);
+		ret = true;
+	    }
+	}
+	return(ret);
+    }
+
+    private boolean grown() throws IOException {
+	Pack[] packs = this.packs;
+	if(packfile(gen, packs.length).exists())
+	    return(true);
+	for(Pack p : packs) {
+	    if(p.fp.length() > p.end)
+		return(true);
+	}
+	return(false);
+    }
+
+    private synchronized boolean refresh() throws IOException {
+	if(!grown())
+	    return(false);
+	try(FileLock lk = applock()) {
+	    return(scantails());
+	}
+    }
+
+    private boolean readindex() throws IOException {
+	CheckedInputStream cs;
+	try {
+	    cs = new CheckedInputStream(new BufferedInputStream(new FileInputStream(new File(base, "index"))), new CRC32());
+	} catch(FileNotFoundException e) {
+	    return(false);
+	}
+	try(DataInputStream fp = new DataInputStream(cs)) {
+	    byte[] sig = new byte[IDXSIG.length];
+	    fp.readFully(sig);
+	    if(!Arrays.equals(sig, IDXSIG) || (fp.readInt() != gen))
+		return(false);
+	    int np = fp.readInt();
+	    if(np > packs.length)
+		return(false);
+	    for(int i = 0; i < np; i++) {
+		long end = fp.readLong();
+		if(end > packs[i].fp.length())
+		    return(false);
+		packs[i].end = end;
+	    }
+	    for(int i = 0, n = fp.readInt(); i < n; i++) {
+		String name = fp.readUTF();
+		int pack = fp.readInt();
+		long off = fp.readLong();
+		int len = fp.readInt();
+		if(pack >= np)
+		    return(false);
+		apply(name, new Entry(pack, off, len));
+	    }
+	    garbage = fp.readLong();
+	    long sum = cs.getChecksum().getValue();
+	    return(fp.readLong() == sum);
+	} catch(EOFException e) {
+	    return(false);
+	}
+    }
+
+    private synchronized void saveindex() throws IOException {
+	File tmp = new File(base, "index.new");
+	CheckedOutputStream cs = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)), new CRC32());
+	try(DataOutputStream fp = new DataOutputStream(cs)) {
+	    fp.write(IDXSIG);
+	    fp.writeInt(gen);
+	    fp.writeInt(packs.length);
+	    for(Pack p : packs)
+		fp.writeLong(p.end);
+	    fp.writeInt(index.size());
+	    for(Map.Entry<String, Entry> ent : index.entrySet()) {
+		Entry e = ent.getValue();
+		fp.writeUTF(ent.getKey());
+		fp.writeInt(e.pack);
+		fp.writeLong(e.off);
+		fp.writeInt(e.len);
+	    }
+	    fp.writeLong(garbage);
+	    fp.writeLong(cs.getChecksum().getValue());
+	}
+	replace(tmp, new File(base, "index"));
+	unsaved = 0;
+    }
+
+    private static byte[] record(String name, byte[] data) {
+	byte[] nm = name.getBytes(Utils.utf8);
+	int len = (data == null) ? -1 : data.length;
+	byte[] ret = new byte[11 + nm.length + Math.max(len, 0)];
+	int off = 0;
+	ret[off++] = 1;
+	ret[off++] = (byte)(nm.length >> 8);
+	ret[off++] = (byte)nm.length;
+	System.arraycopy(nm, 0, ret, off, nm.length); off += nm.length;
+	for(int sh = 24; sh >= 0; sh -= 8)
+	    ret[off++] = (byte)(len >> sh);
+	if(data != null) {
+	    System.arraycopy(data, 0, ret, off, data.length);
+	    off += data.length;
+	}
+	CRC32 crc = new CRC32();
+	crc.update(ret, 0, off);
+	int sum = (int)crc.getValue();
+	for(int sh = 24; sh >= 0; sh -= 8)
+	    ret[off++] = (byte)(sum >> sh);
+	return(ret);
+    }
+
+    private synchronized void append(String name, byte[] data) throws IOException {
+	byte[] rec = record(name, data);
+	try(FileLock lk = applock()) {
+	    scantails();
+	    Pack p = (packs.length > 0) ? packs[packs.length - 1] : null;
+	    if((p == null) || ((p.end > 0) && (p.end + rec.length > PACKSZ))) {
+		int no = packs.length;
+		Pack[] np = Arrays.copyOf(packs, no + 1);
+		np[no] = p = new Pack(no, packfile(gen, no));
+		packs = np;
+	    }
+	    /* Writing at the valid end rather than the file end
+	     * overwrites whatever a crashed writer may have left. */
+	    p.fp.seek(p.end);
+	    p.fp.write(rec);
+	    apply(name, (data == null) ? null : new Entry(p.no, p.end + rec.length - 4 - data.length, data.length));
+	    p.end += rec.length;
+	}
+	if(++unsaved >= SAVEINT)
+	    saveindex();
+    }
+
+    /* Must be called with the cache held exclusively. */
+    private void compact() throws IOException {
+	int ngen = gen + 1;
+	List<Map.Entry<String, Entry>> ents = new ArrayList<>(index.entrySet());
+	ents.sort((a, b) -> (a.getValue().pack != b.getValue().pack) ?
+		  Integer.compare(a.getValue().pack, b.getValue().pack) :
+		  Long.compare(a.getValue().off, b.getValue().off));
+	List<Pack> np = new ArrayList<>();
+	Map<String, Entry> nidx = new HashMap<>();
+	Pack cur = null;
+	for(Map.Entry<String, Entry> ent : ents) {
+	    Entry e = ent.getValue();
+	    byte[] data = new byte[e.len];
+	    RandomAccessFile src = packs[e.pack].fp;
+	    src.seek(e.off);
+	    src.readFully(data);
+	    byte[] rec = record(ent.getKey(), data);
+	    if((cur == null) || ((cur.end > 0) && (cur.end + rec.length > PACKSZ))) {
+		if(cur != null)
+		    cur.fp.getFD().sync();
+		np.add(cur = new Pack(np.size(), packfile(ngen, np.size())));
+		cur.fp.setLength(0);
+	    }
+	    cur.fp.seek(cur.end);
+	    cur.fp.write(rec);
+	    nidx.put(ent.getKey(), new Entry(cur.no, cur.end + rec.length - 4 - data.length, data.length));
+	    cur.end += rec.length;
+	}
+	if(cur != null)
+	    cur.fp.getFD().sync();
+	writegen(ngen);
+	Pack[] old = packs;
+	gen = ngen;
+	packs = np.toArray(new Pack[0]);
+	index.clear();
+	index.putAll(nidx);
+	garbage = 0;
+	saveindex();
+	for(Pack p : old) {
+	    p.fp.close();
+	    packfile(ngen - 1, p.no).delete();
+	}
+    }
+
+    public OutputStream store(String name) throws IOException {
+	return(new ByteArrayOutputStream() {
+		public void close() throws IOException {
+		    append(name, toByteArray());
+		}
+	    });
+    }
+
+    public InputStream fetch(String name) throws IOException {
+	Entry e = index.get(name);
+	if((e == null) && refresh())
+	    e = index.get(name);
+	if(e == null) {
+	    if(back != null) {
+		byte[] data;
+		try(InputStream fp = back.fetch(name)) {
+		    data = Utils.readall(fp);
+		}
+		append(name, data);
+		return(new ByteArrayInputStream(data));
+	    }
+	    throw(new FileNotFoundException(name));
+	}
+	final ByteBuffer buf = packs[e.pack].slice(e.off, e.len);
+	return(new InputStream() {
+		public int read() {
+		    return(buf.hasRemaining() ? (buf.get() & 0xff) : -1);
+		}
+
+		public int read(byte[] b, int off, int len) {
+		    if(!buf.hasRemaining())
+			return(-1);
+		    len = Math.min(len, buf.remaining());
+		    buf.get(b, off, len);
+		    return(len);
+		}
+
+		public int available() {
+		    return(buf.remaining());
+		}
+	    });
+    }
+
+    public boolean remove(String name) throws IOException {
+	if(!index.containsKey(name) && !refresh() && !index.containsKey(name))
+	    throw(new FileNotFoundException(name));
+	append(name, null);
+	return(true);
+    }
+
+    public String toString() {
+	return("PackCache(" + id + ")");
+    }
+
+    public static void main(String[] args) throws IOException {
+	if(args.length < 2) {
+	    System.err.println("usage: PackCache ID-URI COMMAND [ARGS...]");
+	    System.exit(1);
+	}
+	PackCache cache = get(URI.create(args[0]), null);
+	switch(args[1]) {
+	case "ls":
+	    for(String nm : new TreeSet<>(cache.index.keySet()))
+		System.out.println(nm);
+	    break;
+	case "cat":
+	    try(InputStream fp = cache.fetch(args[2])) {
+		System.out.write(Utils.readall(fp));
+		System.out.flush();
+	    } catch(FileNotFoundException e) {
+		System.err.printf("%s: not found\n", args[2]);
+		System.exit(1);
+	    }
+	    break;
+	case "stat":
+	    synchronized(cache) {
+		System.out.printf("%s: generation %d, %d packs, %d entries, %,d live bytes, %,d garbage bytes\n",
+				  cache.base, cache.gen, cache.packs.length, cache.index.size(), cache.live, cache.garbage);
+	    }
+	    break;
+	case "rm":
+	    for(int i = 2; i < args.length; i++) {
+		try {
+		    cache.remove(args[i]);
+		} catch(FileNotFoundException e) {
+		    System.err.printf("%s: not found\n", args[i]);
+		}
+	    }
+	    break;
+	default:
+	    System.err.printf("%s: no such command\n", args[1]);
+	    break;
+	}
+    }
+}
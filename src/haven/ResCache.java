@@ -31,11 +31,22 @@ import java.io.*;
 public interface ResCache {
     public OutputStream store(String name) throws IOException;
     public InputStream fetch(String name) throws IOException;
+
+    /* Returns false if this cache cannot remove entries at all;
+     * a missing entry is a FileNotFoundException, as for fetch. */
+    public default boolean remove(String name) throws IOException {
+	return(false);
+    }
     
     public static ResCache global = StupidJavaCodeContainer.makeglobal();
     
     public static class StupidJavaCodeContainer {
 	private static ResCache makeglobal() {
+	    if(Config.rescache.equals("pack")) {
+		ResCache ret = PackCache.create();
+		if(ret != null)
+		    return(ret);
+	    }
 	    return(HashDirCache.create());
 	}
     }
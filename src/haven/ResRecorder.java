@@ -0,0 +1,271 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+
+package haven;
+
+import java.util.*;
+import java.io.*;
+
+/* Records which remote resources a session asks for during its first
+ * minutes, and which of them a frame had to wait for, and merges that
+ * into a ranking kept over many sessions. The ranking is used to warm
+ * the resource cache in the background at startup, and can be
+ * exported as a preload list. */
+public class ResRecorder {
+    public static final String STATS = "tmp/resrank";
+    public static final double DECAY = 0.9;
+    static volatile Thread framethread = null;
+    private static volatile ResRecorder cur = null;
+    private static Thread warmer = null;
+    private final double start = Utils.rtime();
+    private final Map<String, Double> requested = new HashMap<>();
+    private final Set<String> blocked = new HashSet<>();
+
+    public static class Entry {
+	public final String name;
+	public int ver;
+	public double seen, blocked, tsum;
+
+	public Entry(String name, int ver) {
+	    this.name = name;
+	    this.ver = ver;
+	}
+
+	public double score() {
+	    return(seen + (blocked * 4));
+	}
+
+	public double mtime() {
+	    return((seen > 0) ? (tsum / seen) : Double.POSITIVE_INFINITY);
+	}
+    }
+
+    public static void start() {
+	finish();
+	if(Config.resrecord > 0)
+	    cur = new ResRecorder();
+    }
+
+    static void requested(String name) {
+	ResRecorder rec = cur;
+	if((rec == null) || (Thread.currentThread() == warmer))
+	    return;
+	double t = Utils.rtime() - rec.start;
+	if(t > Config.resrecord)
+	    return;
+	synchronized(rec) {
+	    rec.requested.putIfAbsent(name, t);
+	}
+    }
+
+    static void blocked(String name) {
+	ResRecorder rec = cur;
+	if((rec == null) || (Thread.currentThread() != framethread))
+	    return;
+	synchronized(rec) {
+	    rec.blocked.add(name);
+	}
+    }
+
+    /* Merges what the current session has recorded into the stored
+     * ranking. */
+    public static void finish() {
+	ResRecorder rec = cur;
+	cur = null;
+	if((rec == null) || (ResCache.global == null))
+	    return;
+	Map<String, Integer> vers = new HashMap<>();
+	for(Resource res : Resource.remote().cached())
+	    vers.put(res.name, res.ver);
+	synchronized(ResRecorder.class) {
+	    Map<String, Entry> stats = load(ResCache.global);
+	    synchronized(rec) {
+		if(rec.requested.isEmpty() && rec.blocked.isEmpty())
+		    return;
+		merge(stats, rec.requested, rec.blocked, vers);
+	    }
+	    try(OutputStream fp = ResCache.global.store(STATS)) {
+		save(stats, fp);
+	    } catch(IOException e) {
+		new Warning(e, "could not save resource ranking").issue();
+	    }
+	}
+    }
+
+    static void merge(Map<String, Entry> stats, Map<String, Double> requested, Set<String> blocked, Map<String, Integer> vers) {
+	for(Entry ent : stats.values()) {
+	    ent.seen *= DECAY;
+	    ent.blocked *= DECAY;
+	    ent.tsum *= DECAY;
+	}
+	Set<String> names = new HashSet<>(requested.keySet());
+	names.addAll(blocked);
+	for(String nm : names) {
+	    Entry ent = stats.computeIfAbsent(nm, k -> new Entry(k, -1));
+	    Integer ver = vers.get(nm);
+	    if(ver != null)
+		ent.ver = ver;
+	    Double t = requested.get(nm);
+	    if(t != null) {
+		ent.seen += 1;
+		ent.tsum += t;
+	    }
+	    if(blocked.contains(nm))
+		ent.blocked += 1;
+	}
+	stats.values().removeIf(ent -> ent.score() < 0.05);
+    }
+
+    public static Map<String, Entry> load(InputStream fp) throws IOException {
+	Map<String, Entry> ret = new HashMap<>();
+	BufferedReader in = new BufferedReader(new InputStreamReader(fp, Utils.utf8));
+	String ln;
+	while((ln = in.readLine()) != null) {
+	    String[] w = ln.split(" ");
+	    if(w.length < 5)
+		continue;
+	    try {
+		Entry ent = new Entry(w[0], Integer.parseInt(w[1]));
+		ent.seen = Double.parseDouble(w[2]);
+		ent.blocked = Double.parseDouble(w[3]);
+		ent.tsum = Double.parseDouble(w[4]);
+		ret.put(ent.name, ent);
+	    } catch(NumberFormatException e) {
+		continue;
+	    }
+	}
+	return(ret);
+    }
+
+    public static Map<String, Entry> load(ResCache cache) {
+	try(InputStream fp = cache.fetch(STATS)) {
+	    return(load(fp));
+	} catch(FileNotFoundException e) {
+	    return(new HashMap<>());
+	} catch(IOException e) {
+	    new Warning(e, "could not load resource ranking").issue();
+	    return(new HashMap<>());
+	}
+    }
+
+    public static void save(Map<String, Entry> stats, OutputStream fp) {
+	PrintWriter out = new PrintWriter(new OutputStreamWriter(fp, Utils.utf8));
+	for(Entry ent : stats.values())
+	    out.printf(Locale.ROOT, "%s %d %.3f %.3f %.1f\n", ent.name, ent.ver, ent.seen, ent.blocked, ent.tsum);
+	out.flush();
+    }
+
+    /* Resources that frames waited for come first, then those asked
+     * for by many sessions, and then those asked for early. */
+    public static List<Entry> rank(Map<String, Entry> stats) {
+	List<Entry> ret = new ArrayList<>(stats.values());
+	Collections.sort(ret, (a, b) -> {
+		int c = Double.compare(b.score(), a.score());
+		if(c != 0)
+		    return(c);
+		return(Double.compare(a.mtime(), b.mtime()));
+	    });
+	return(ret);
+    }
+
+    /* Loads the ranked resources in the background, in order, at low
+     * priority and only a few at a time, so that the queue stays
+     * free for what is actually needed. */
+    public static void warm(Resource.Pool pool, int max) {
+	if(ResCache.global == null)
+	    return;
+	List<Entry> list = rank(load(ResCache.global));
+	if(list.isEmpty())
+	    return;
+	synchronized(ResRecorder.class) {
+	    if(warmer != null)
+		return;
+	    warmer = new HackThread(() -> {
+		    try {
+			int n = 0;
+			for(Entry ent : list) {
+			    if(n++ >= max)
+				break;
+			    while(pool.qdepth() > 16)
+				Thread.sleep(100);
+			    try {
+				/* Any version; the recorded one may be
+				 * out of date after a server update. */
+				pool.load(ent.name, -1, -10);
+			    } catch(RuntimeException e) {
+			    }
+			}
+		    } catch(InterruptedException e) {
+		    }
+		}, "Resource warmer");
+	    warmer.setDaemon(true);
+	    warmer.start();
+	}
+    }
+
+    public static void main(String[] args) throws IOException {
+	if((args.length >= 3) && args[0].equals("merge")) {
+	    /* Rankings from different clients are added together
+	     * without decay. */
+	    Map<String, Entry> stats = new HashMap<>();
+	    for(int i = 2; i < args.length; i++) {
+		try(InputStream fp = new FileInputStream(args[i])) {
+		    for(Entry ent : load(fp).values()) {
+			Entry prev = stats.get(ent.name);
+			if(prev == null) {
+			    stats.put(ent.name, ent);
+			} else {
+			    prev.ver = Math.max(prev.ver, ent.ver);
+			    prev.seen += ent.seen;
+			    prev.blocked += ent.blocked;
+			    prev.tsum += ent.tsum;
+			}
+		    }
+		}
+	    }
+	    try(OutputStream fp = new FileOutputStream(args[1])) {
+		save(stats, fp);
+	    }
+	} else if((args.length >= 2) && args[0].equals("list")) {
+	    Map<String, Entry> stats;
+	    try(InputStream fp = new FileInputStream(args[1])) {
+		stats = load(fp);
+	    }
+	    int max = (args.length > 2) ? Integer.parseInt(args[2]) : Integer.MAX_VALUE;
+	    int n = 0;
+	    for(Entry ent : rank(stats)) {
+		if((n++ >= max) || (ent.ver < 0))
+		    continue;
+		System.out.println(ent.name + ":" + ent.ver);
+	    }
+	} else {
+	    System.err.println("usage: ResRecorder merge OUTPUT RANKING...");
+	    System.err.println("       ResRecorder list RANKING [COUNT]");
+	    System.exit(1);
+	}
+    }
+}
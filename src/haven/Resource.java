@@ -38,6 +38,9 @@ import javax.imageio.*;
 import java.awt.image.BufferedImage;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Resource implements Serializable {
     private static ResCache prscache;
@@ -51,7 +54,8 @@ public class Resource implements Serializable {
     public static Class<Audio> audio = Audio.class;
     public static Class<Tooltip> tooltip = Tooltip.class;
     
-    private Collection<Layer> layers = new LinkedList<Layer>();
+    private Layer[] layers = {};
+    private transient volatile Map<Class<?>, Layer[]> lindex = new ConcurrentHashMap<>();
     public final String name;
     public int ver;
     public ResSource source;
@@ -197,6 +201,11 @@ public class Resource implements Serializable {
 
     public static interface ResSource {
 	public InputStream get(String name) throws IOException;
+
+	/* Sources that may block on the network return the number of
+	 * concurrent fetches they allow, and are fetched from by
+	 * threads of their own. Local sources are read directly. */
+	public default int fetchers() {return(0);}
     }
     
     public static abstract class TeeSource implements ResSource, Serializable {
@@ -214,6 +223,10 @@ public class Resource implements Serializable {
 	}
 	
 	public abstract OutputStream fork(String name) throws IOException;
+
+	public int fetchers() {
+	    return(back.fetchers());
+	}
 	
 	public String toString() {
 	    return("forking source backed by " + back);
@@ -352,6 +365,10 @@ public class Resource implements Serializable {
 		});
 	}
 
+	public int fetchers() {
+	    return(Config.resfetchers);
+	}
+
 	public String toString() {
 	    return("HTTP res source (" + baseurl + ")");
 	}
@@ -387,11 +404,13 @@ public class Resource implements Serializable {
 
     public static class Pool {
 	public int nloaders = 2;
-	private final Collection<Loader> loaders = new LinkedList<Loader>();
-	private final List<ResSource> sources = new LinkedList<ResSource>();
+	private final List<ResSource> sources = new CopyOnWriteArrayList<ResSource>();
 	private final Map<String, Resource> cache = new CacheMap<String, Resource>();
-	private final PrioQueue<Queued> queue = new PrioQueue<Queued>();
 	private final Map<String, Queued> queued = new HashMap<String, Queued>();
+	private final Stage reader = new Stage("Haven resource loader", nloaders, this::fetch);
+	private final Stage decoder = new Stage("Haven resource decoder", Runtime.getRuntime().availableProcessors(), this::decode);
+	private final Map<ResSource, Stage> fetchers = new HashMap<ResSource, Stage>();
+	private final AtomicInteger nlocal = new AtomicInteger(0), nremote = new AtomicInteger(0);
 	private final Pool parent;
 
 	public Pool(Pool parent, ResSource... sources) {
@@ -416,6 +435,9 @@ public class Resource implements Serializable {
 	    volatile boolean done = false;
 	    Resource res;
 	    LoadException error;
+	    transient int srci = 0;
+	    transient byte[] data;
+	    transient long qtime;
 
 	    Queued(String name, int ver, int prio) {
 		super(name, ver);
@@ -437,6 +459,7 @@ public class Resource implements Serializable {
 	    public Resource get() {
 		if(!done) {
 		    boostprio(1);
+		    ResRecorder.blocked(name);
 		    throw(new Loading(this));
 		}
 		if(error != null)
@@ -455,11 +478,19 @@ public class Resource implements Serializable {
 		    wq.wnotify();
 		}
 		if(res != null) {
+		    /* A superseded load may still be finishing in a later
+		     * stage, and must not replace a newer version. */
+		    boolean current;
+		    synchronized(queued) {
+			current = (queued.get(name) == this);
+		    }
 		    synchronized(cache) {
-			cache.put(name, res);
+			Resource cur = cache.get(name);
+			if(current || (cur == null) || (cur.ver <= res.ver))
+			    cache.put(name, res);
 		    }
-		    synchronized(queue) {
-			queued.remove(name);
+		    synchronized(queued) {
+			queued.remove(name, this);
 		    }
 		}
 	    }
@@ -467,54 +498,204 @@ public class Resource implements Serializable {
 	    private void prior(Queued prior) {
 		if((res = prior.res) == null) {
 		    error = prior.error;
-		    synchronized(queue) {
-			queue.add(this);
-			queue.notify();
-		    }
-		    ckld();
+		    reader.add(this);
 		} else {
 		    done();
 		}
 	    }
 
+	    private void failed(ResSource src, Throwable t) {
+		LoadException error;
+		if(t instanceof LoadException)
+		    error = (LoadException)t;
+		else
+		    error = new LoadException(String.format("Load error in resource %s(v%d), from %s", name, ver, src), t, null);
+		error.src = src;
+		if(this.error != null) {
+		    error.prev = this.error;
+		    error.addSuppressed(this.error);
+		}
+		this.error = error;
+	    }
+
 	    public String toString() {
 		return(String.format("<q:%s(v%d)>", name, ver));
 	    }
 	}
 
-	private void handle(Queued res) {
-	    for(ResSource src : sources) {
+	/* A loading stage, with a queue of its own and worker threads
+	 * started as needed, up to a limit, that exit when left idle
+	 * for a while. */
+	private class Stage {
+	    final String name;
+	    final int max;
+	    final Consumer<Queued> handler;
+	    final PrioQueue<Queued> queue = new PrioQueue<Queued>();
+	    int threads = 0, busy = 0;
+	    long nproc = 0, ttime = 0;
+
+	    Stage(String name, int max, Consumer<Queued> handler) {
+		this.name = name;
+		this.max = max;
+		this.handler = handler;
+	    }
+
+	    void add(Queued res) {
+		synchronized(queue) {
+		    res.qtime = System.nanoTime();
+		    queue.add(res);
+		    queue.notify();
+		    if((threads < max) && (queue.size() > threads - busy))
+			spawn();
+		}
+	    }
+
+	    boolean remove(Queued res) {
+		synchronized(queue) {
+		    return(queue.removeid(res));
+		}
+	    }
+
+	    private void spawn() {
+		Runnable worker = this::run;
+		Thread th = AccessController.doPrivileged(new PrivilegedAction<Thread>() {
+			public Thread run() {
+			    return(new HackThread(loadergroup, worker, name));
+			}
+		    });
+		th.setDaemon(true);
+		th.start();
+		threads++;
+	    }
+
+	    private void run() {
+		boolean intd = false;
 		try {
-		    InputStream in = src.get(res.name);
-		    try {
-			Resource ret = new Resource(this, res.name, res.ver);
-			ret.source = src;
-			ret.load(in);
-			res.res = ret;
-			res.error = null;
-			break;
-		    } finally {
-			in.close();
+		    while(true) {
+			Queued cur;
+			long qtime;
+			synchronized(queue) {
+			    long start = System.currentTimeMillis(), now = start;
+			    while((cur = queue.poll()) == null) {
+				queue.wait(10000 - (now - start));
+				now = System.currentTimeMillis();
+				if(now - start >= 10000)
+				    return;
+			    }
+			    qtime = cur.qtime;
+			    busy++;
+			}
+			try {
+			    handler.accept(cur);
+			} finally {
+			    synchronized(queue) {
+				busy--;
+				nproc++;
+				ttime += System.nanoTime() - qtime;
+			    }
+			}
+			cur = null;
 		    }
-		} catch(Throwable t) {
-		    LoadException error;
-		    if(t instanceof LoadException)
-			error = (LoadException)t;
-		    else
-			error = new LoadException(String.format("Load error in resource %s(v%d), from %s", res.name, res.ver, src), t, null);
-		    error.src = src;
-		    if(res.error != null) {
-			error.prev = res.error;
-			error.addSuppressed(res.error);
+		} catch(InterruptedException e) {
+		    intd = true;
+		} finally {
+		    synchronized(queue) {
+			threads--;
+			if(!intd && !queue.isEmpty() && (threads < max))
+			    spawn();
 		    }
-		    res.error = error;
+		}
+	    }
+
+	    int depth() {
+		synchronized(queue) {
+		    return(queue.size() + busy);
+		}
+	    }
+
+	    public String toString() {
+		synchronized(queue) {
+		    return(String.format("%d/%d %.1fms", queue.size(), threads, (nproc == 0) ? 0.0 : (ttime * 1e-6) / nproc));
+		}
+	    }
+	}
+
+	private Stage fetcher(ResSource src) {
+	    synchronized(fetchers) {
+		Stage ret = fetchers.get(src);
+		if(ret == null)
+		    fetchers.put(src, ret = new Stage("Haven resource fetcher", src.fetchers(), this::fetchremote));
+		return(ret);
+	    }
+	}
+
+	private boolean read(Queued res, ResSource src) {
+	    try {
+		InputStream in = src.get(res.name);
+		try {
+		    res.data = Utils.readall(in);
+		} finally {
+		    in.close();
+		}
+		return(true);
+	    } catch(Throwable t) {
+		res.failed(src, t);
+		return(false);
+	    }
+	}
+
+	/* Tries the sources of a queued resource in order, from where
+	 * it last left off. Local sources are read right away, so that
+	 * cache and jar hits are never held up behind network fetches,
+	 * while others hand it over to their fetcher stage. */
+	private void fetch(Queued res) {
+	    for(; res.srci < sources.size(); res.srci++) {
+		ResSource src = sources.get(res.srci);
+		if(src.fetchers() > 0) {
+		    fetcher(src).add(res);
+		    return;
+		}
+		if(read(res, src)) {
+		    decoder.add(res);
+		    return;
 		}
 	    }
 	    res.done();
 	}
 
+	private void fetchremote(Queued res) {
+	    if(read(res, sources.get(res.srci))) {
+		decoder.add(res);
+	    } else {
+		res.srci++;
+		fetch(res);
+	    }
+	}
+
+	private void decode(Queued res) {
+	    ResSource src = sources.get(res.srci);
+	    byte[] data = res.data;
+	    res.data = null;
+	    try {
+		Resource ret = new Resource(this, res.name, res.ver);
+		ret.source = src;
+		ret.load(new ByteArrayInputStream(data));
+		res.res = ret;
+		res.error = null;
+	    } catch(Throwable t) {
+		res.failed(src, t);
+		res.srci++;
+		reader.add(res);
+		return;
+	    }
+	    ((src.fetchers() > 0) ? nremote : nlocal).getAndIncrement();
+	    res.done();
+	}
+
 	public Named load(String name, int ver, int prio) {
 	    Queued ret;
+	    if(this == _remote)
+		ResRecorder.requested(name);
 	    synchronized(cache) {
 		Resource cur = cache.get(name);
 		if(cur != null) {
@@ -530,7 +711,7 @@ public class Resource implements Serializable {
 			throw(new LoadException(String.format("Weird version number on %s (%d > %d), loaded from %s", cur.name, cur.ver, ver, cur.source), cur));
 		    }
 		}
-		synchronized(queue) {
+		synchronized(queued) {
 		    Queued cq = queued.get(name);
 		    if(cq != null) {
 			if(ver != -1) {
@@ -549,13 +730,12 @@ public class Resource implements Serializable {
 			    }
 			}
 			queued.remove(name);
-			queue.removeid(cq);
+			reader.remove(cq);
 		    }
 		    Queued nq = new Queued(name, ver, prio);
 		    queued.put(name, nq);
 		    if(parent == null) {
-			queue.add(nq);
-			queue.notify();
+			reader.add(nq);
 		    } else {
 			Indir<Resource> pr = parent.load(name, ver, prio);
 			if(pr instanceof Queued) {
@@ -577,7 +757,6 @@ public class Resource implements Serializable {
 		    ret = nq;
 		}
 	    }
-	    ckld();
 	    return(ret);
 	}
 
@@ -588,78 +767,28 @@ public class Resource implements Serializable {
 	    return(load(String.format("dyn/%x", id), 1));
 	}
 
-	private void ckld() {
-	    int qsz;
-	    synchronized(queue) {
-		qsz = queue.size();
-	    }
-	    synchronized(loaders) {
-		while(loaders.size() < Math.min(nloaders, qsz)) {
-		    final Loader n = new Loader();
-		    Thread th = AccessController.doPrivileged(new PrivilegedAction<Thread>() {
-			    public Thread run() {
-				return(new HackThread(loadergroup, n, "Haven resource loader"));
-			    }
-			});
-		    th.setDaemon(true);
-		    th.start();
-		    while(!n.added) {
-			try {
-			    loaders.wait();
-			} catch(InterruptedException e) {
-			    Thread.currentThread().interrupt();
-			    return;
-			}
-		    }
-		}
-	    }
-	}
-
-	public class Loader implements Runnable {
-	    private boolean added = false;
-
-	    public void run() {
-		synchronized(loaders) {
-		    loaders.add(this);
-		    added = true;
-		    loaders.notifyAll();
-		}
-		boolean intd = false;
-		try {
-		    while(true) {
-			Queued cur;
-			synchronized(queue) {
-			    long start = System.currentTimeMillis(), now = start;
-			    while((cur = queue.poll()) == null) {
-				queue.wait(10000 - (now - start));
-				now = System.currentTimeMillis();
-				if(now - start >= 10000)
-				    return;
-			    }
-			}
-			handle(cur);
-			cur = null;
-		    }
-		} catch(InterruptedException e) {
-		    intd = true;
-		} finally {
-		    synchronized(loaders) {
-			loaders.remove(this);
-		    }
-		    if(!intd)
-			ckld();
-		}
-	    }
-	}
-
 	public int qdepth() {
 	    int ret = (parent == null)?0:parent.qdepth();
-	    synchronized(queue) {
-		ret += queue.size();
+	    ret += reader.depth() + decoder.depth();
+	    synchronized(fetchers) {
+		for(Stage st : fetchers.values())
+		    ret += st.depth();
 	    }
 	    return(ret);
 	}
 
+	public String stats() {
+	    int l = nlocal.get(), r = nremote.get();
+	    StringBuilder buf = new StringBuilder();
+	    buf.append(String.format("hit %d%%, io %s", ((l + r) == 0) ? 100 : (l * 100) / (l + r), reader));
+	    synchronized(fetchers) {
+		for(Stage st : fetchers.values())
+		    buf.append(", net " + st);
+	    }
+	    buf.append(", dec " + decoder);
+	    return(buf.toString());
+	}
+
 	public int numloaded() {
 	    int ret = (parent == null)?0:parent.numloaded();
 	    synchronized(cache) {
@@ -1558,32 +1687,77 @@ public class Resource implements Serializable {
 	}
     }
 
+    /* Layers of heavy types may, when so configured, be kept as
+     * their raw data until their type is first looked up. */
+    private static final Collection<Class<?>> lazyc = Arrays.asList(Image.class, VertexBuf.VertexRes.class, FastMesh.MeshRes.class);
+
+    /* Layers are serializable, so the factory is looked up again by
+     * type name when the layer is decoded, rather than kept. */
+    private class Deferred extends Layer {
+	final String type;
+	final Class<?> cl;
+	final byte[] data;
+
+	Deferred(String type, Class<?> cl, byte[] data) {
+	    this.type = type;
+	    this.cl = cl;
+	    this.data = data;
+	}
+
+	Layer decode() {
+	    return(ltypes.get(type).cons(Resource.this, new MessageBuf(data)));
+	}
+
+	public void init() {}
+    }
+
+    private Layer[] index(Class<?> cl) {
+	Map<Class<?>, Layer[]> lindex = this.lindex;
+	Layer[] ret = (lindex == null) ? null : lindex.get(cl);
+	if(ret == null) {
+	    synchronized(this) {
+		/* Not restored by deserialization. */
+		if((lindex = this.lindex) == null)
+		    this.lindex = lindex = new ConcurrentHashMap<>();
+		if((ret = lindex.get(cl)) == null) {
+		    for(int i = 0; i < layers.length; i++) {
+			if((layers[i] instanceof Deferred) && cl.isAssignableFrom(((Deferred)layers[i]).cl)) {
+			    Deferred d = (Deferred)layers[i];
+			    Layer l = d.decode();
+			    layers[i] = l;
+			    l.init();
+			}
+		    }
+		    List<Layer> buf = new ArrayList<>();
+		    for(Layer l : layers) {
+			if(cl.isInstance(l))
+			    buf.add(l);
+		    }
+		    lindex.put(cl, ret = buf.toArray(new Layer[0]));
+		}
+	    }
+	}
+	return(ret);
+    }
+
+    @SuppressWarnings("unchecked")
     public <L extends Layer> Collection<L> layers(final Class<L> cl) {
 	used = true;
-	return(new DefaultCollection<L>() {
-		public Iterator<L> iterator() {
-		    return(Utils.filter(layers.iterator(), cl));
-		}
-	    });
+	return(Collections.unmodifiableList(Arrays.asList((L[])index(cl))));
     }
 
     public <L extends Layer> L layer(Class<L> cl) {
 	used = true;
-	for(Layer l : layers) {
-	    if(cl.isInstance(l))
-		return(cl.cast(l));
-	}
-	return(null);
+	Layer[] ls = index(cl);
+	return((ls.length > 0) ? cl.cast(ls[0]) : null);
     }
 
     public <I, L extends IDLayer<I>> L layer(Class<L> cl, I id) {
 	used = true;
-	for(Layer l : layers) {
-	    if(cl.isInstance(l)) {
-		L ll = cl.cast(l);
-		if(ll.layerid().equals(id))
-		    return(ll);
-	    }
+	for(Layer l : index(cl)) {
+	    L ll = cl.cast(l);
+	    if(ll.layerid().equals(id))
+		return(ll);
 	}
 	return(null);
     }
@@ -1601,24 +1775,33 @@ public class Resource implements Serializable {
 	if(!Arrays.equals(sig, in.bytes(sig.length)))
 	    throw(new LoadException("Invalid res signature", this));
 	int ver = in.uint16();
-	List<Layer> layers = new LinkedList<Layer>();
+	List<Layer> layers = new ArrayList<Layer>();
 	if(this.ver == -1)
 	    this.ver = ver;
 	else if(ver != this.ver)
 	    throw(new LoadException("Wrong res version (" + ver + " != " + this.ver + ")", this));
 	while(!in.eom()) {
-	    LayerFactory<?> lc = ltypes.get(in.string());
+	    String type = in.string();
+	    LayerFactory<?> lc = ltypes.get(type);
 	    int len = in.int32();
 	    if(lc == null) {
 		in.skip(len);
 		continue;
 	    }
+	    if(Config.lazyres && (lc instanceof LayerConstructor) && lazyc.contains(((LayerConstructor<?>)lc).cl)) {
+		layers.add(new Deferred(type, ((LayerConstructor<?>)lc).cl, in.bytes(len)));
+		continue;
+	    }
 	    Message buf = new LimitMessage(in, len);
 	    layers.add(lc.cons(this, buf));
 	    buf.skip();
 	}
-	this.layers = layers;
-	for(Layer l : layers)
+	Layer[] loaded = layers.toArray(new Layer[0]);
+	this.lindex = new ConcurrentHashMap<>();
+	this.layers = loaded.clone();
+	/* Deferred layers are initialized as they are decoded, which
+	 * may already happen during the initialization of others. */
+	for(Layer l : loaded)
 	    l.init();
 	used = false;
     }
@@ -30,6 +30,8 @@ import java.io.IOException;
 import java.lang.ref.Reference;
 import java.lang.ref.WeakReference;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.util.*;
 import java.util.function.*;
 import java.io.*;
@@ -61,6 +63,9 @@ public class Session implements Resource.Resolver {
     };
 
     DatagramSocket sk;
+    DatagramChannel ch;
+    NetLog.Writer cap;
+    final PacketPool rpool = new PacketPool(32);
     SocketAddress server;
     Thread rworker, sworker;
     Object[] args;
@@ -71,11 +76,15 @@ public class Session implements Resource.Resolver {
     long acktime = -1;
     LinkedList<PMessage> uimsgs = new LinkedList<PMessage>();
     Map<Integer, PMessage> waiting = new TreeMap<Integer, PMessage>();
-    LinkedList<RMessage> pending = new LinkedList<RMessage>();
-    Map<Long, ObjAck> objacks = new TreeMap<Long, ObjAck>();
+    final RelQueue pending = new RelQueue();
+    public final RTT rtt = new RTT();
+    final ObjAcks objacks = new ObjAcks();
     String username;
     byte[] cookie;
     final Map<Integer, CachedRes> rescache = new TreeMap<Integer, CachedRes>();
+    /* Resolved resources back to their IDs. Only filled in as
+     * references resolve, so lookups never have to resolve anything. */
+    private final Map<Resource, Integer> resids = new IdentityHashMap<Resource, Integer>();
     public final Glob glob;
     public final CharacterInfo character;
     public UI ui;
@@ -117,12 +126,14 @@ public class Session implements Resource.Resolver {
     public static class CachedRes {
 	private final Waitable.Queue wq = new Waitable.Queue();
 	private final int resid;
+	private final Map<Resource, Integer> ids;
 	private String resnm = null;
 	private int resver;
 	private Reference<Ref> ind;
 	
-	private CachedRes(int id) {
+	private CachedRes(int id, Map<Resource, Integer> ids) {
 	    resid = id;
+	    this.ids = ids;
 	}
     
 	public class Ref implements Indir<Resource> {
@@ -131,8 +142,10 @@ public class Session implements Resource.Resolver {
 	    public Resource get() {
 		if(resnm == null)
 		    throw(new LoadingIndir(CachedRes.this));
-		if(res == null)
+		if(res == null) {
 		    res = Resource.remote().load(resnm, resver, 0).get();
+		    index(res);
+		}
 		return(res);
 	    }
 	
@@ -179,12 +192,17 @@ public class Session implements Resource.Resolver {
 	
 	public void set(String nm, int ver) {
 	    Resource.remote().load(nm, ver, -5);
+	    Resource prev;
 	    synchronized(this) {
 		this.resnm = nm;
 		this.resver = ver;
-		get().reset();
+		Ref ind = get();
+		prev = ind.res;
+		ind.reset();
 		wq.wnotify();
 	    }
+	    if(prev != null)
+		unindex(prev);
 	}
 
 	public void set(Resource res){
@@ -194,6 +212,23 @@ public class Session implements Resource.Resolver {
 		ind = new WeakReference<Ref>(new SRef(res));
 		notifyAll();
 	    }
+	    index(res);
+	}
+
+	private synchronized boolean is(Resource res) {
+	    return(res.name.equals(resnm) && (res.ver == resver));
+	}
+
+	private void index(Resource res) {
+	    synchronized(ids) {
+		ids.put(res, resid);
+	    }
+	}
+
+	private void unindex(Resource res) {
+	    synchronized(ids) {
+		ids.remove(res, resid);
+	    }
 	}
     }
 
@@ -202,7 +237,7 @@ public class Session implements Resource.Resolver {
 	    CachedRes ret = rescache.get(id);
 	    if(ret != null)
 		return(ret);
-	    ret = new CachedRes(id);
+	    ret = new CachedRes(id, resids);
 	    rescache.put(id, ret);
 	    return(ret);
 	}
@@ -222,16 +257,19 @@ public class Session implements Resource.Resolver {
     }
 
     public int getresid(Resource res) {
-	synchronized (rescache) {
-	    for (Map.Entry<Integer, CachedRes> entry : rescache.entrySet()) {
-		try {
-		    if(entry.getValue().get().get() == res) {
-			return entry.getKey();
-		    }
-		} catch (Loading ignored) {}
-	    }
+	Integer id;
+	synchronized(resids) {
+	    id = resids.get(res);
 	}
-	return -1;
+	if(id == null)
+	    return(-1);
+	CachedRes cr;
+	synchronized(rescache) {
+	    cr = rescache.get(id);
+	}
+	if((cr == null) || !cr.is(res))
+	    return(-1);
+	return(id);
     }
     
     public int getresidf(Resource res) {
@@ -242,17 +280,376 @@ public class Session implements Resource.Resolver {
 	return id;
     }
 
-    private class ObjAck {
-	long id;
-	int frame;
-	long recv;
-	long sent;
-		
-	public ObjAck(long id, int frame, long recv) {
-	    this.id = id;
-	    this.frame = frame;
-	    this.recv = recv;
-	    this.sent = 0;
+    /* Receive buffers are heap-backed so that messages can be decoded
+     * straight out of them. A buffer is held by the reader while it
+     * dispatches a datagram, and additionally by every PooledMessage
+     * view that outlives that dispatch (queued UI messages and
+     * out-of-order rels); it returns to its pool when the last one is
+     * released. */
+    static class PacketBuf {
+	final ByteBuffer bb = ByteBuffer.allocate(65536);
+	final byte[] data = bb.array();
+	final PMessage pkt = new PMessage(0, data, 0, data.length);
+	private final PacketPool pool;
+	private int refs;
+
+	private PacketBuf(PacketPool pool) {
+	    this.pool = pool;
+	}
+
+	PMessage packet() {
+	    pkt.type = data[0];
+	    pkt.rh = 1;
+	    pkt.rt = bb.position();
+	    return(pkt);
+	}
+
+	void ref() {
+	    synchronized(this) {
+		refs++;
+	    }
+	}
+
+	void unref() {
+	    boolean free;
+	    synchronized(this) {
+		if(refs <= 0)
+		    throw(new IllegalStateException("packet buffer released too many times"));
+		free = (--refs == 0);
+	    }
+	    if(free)
+		pool.put(this);
+	}
+    }
+
+    static class PacketPool {
+	private final ArrayDeque<PacketBuf> free = new ArrayDeque<>();
+	private final int keep;
+	public int allocated = 0;
+
+	PacketPool(int keep) {
+	    this.keep = keep;
+	}
+
+	PacketBuf get() {
+	    PacketBuf ret;
+	    synchronized(free) {
+		if((ret = free.poll()) == null) {
+		    ret = new PacketBuf(this);
+		    allocated++;
+		}
+	    }
+	    ret.bb.clear();
+	    ret.refs = 1;
+	    return(ret);
+	}
+
+	void put(PacketBuf buf) {
+	    synchronized(free) {
+		if(free.size() < keep)
+		    free.add(buf);
+		else
+		    allocated--;
+	    }
+	}
+
+	public int free() {
+	    synchronized(free) {
+		return(free.size());
+	    }
+	}
+    }
+
+    public static class PooledMessage extends PMessage {
+	private PacketBuf buf;
+
+	PooledMessage(int type, PacketBuf buf, int off, int len) {
+	    super(type, buf.data, off, len);
+	    this.buf = buf;
+	    buf.ref();
+	}
+
+	public void release() {
+	    PacketBuf buf;
+	    synchronized(this) {
+		buf = this.buf;
+		this.buf = null;
+	    }
+	    if(buf != null)
+		buf.unref();
+	}
+    }
+
+    /* Must be called by consumers of getuimsg() once they are done
+     * with a message, since its data may be reused afterwards. */
+    public static void release(PMessage msg) {
+	if(msg instanceof PooledMessage)
+	    ((PooledMessage)msg).release();
+    }
+
+    /* Retransmission timeout estimation after RFC 6298, with the
+     * server's delayed-ack threshold as clock granularity. */
+    public static class RTT {
+	public static final long INITRTO = 200, MINRTO = 80, MAXRTO = 2000;
+	private double srtt = -1, rttvar = 0;
+	private long rto = INITRTO;
+
+	public synchronized void sample(long r) {
+	    if(srtt < 0) {
+		srtt = r;
+		rttvar = r / 2.0;
+	    } else {
+		rttvar = (0.75 * rttvar) + (0.25 * Math.abs(srtt - r));
+		srtt = (0.875 * srtt) + (0.125 * r);
+	    }
+	    rto = Math.max(Math.min((long)Math.ceil(srtt + Math.max(ackthresh, 4 * rttvar)), MAXRTO), MINRTO);
+	}
+
+	public synchronized long rto() {
+	    return(rto);
+	}
+
+	/* Delay before the next transmission of a message that has
+	 * already been sent retx times, backing off exponentially. */
+	public long txtime(int retx) {
+	    if(retx == 0)
+		return(0);
+	    return(Math.min(rto() << Math.min(retx - 1, 16), MAXRTO));
+	}
+
+	public synchronized String toString() {
+	    if(srtt < 0)
+		return(String.format("RTT -, RTO %d", rto));
+	    return(String.format("RTT %.0f (var %.0f), RTO %d", srtt, rttvar, rto));
+	}
+    }
+
+    /* Pending rels, oldest first, in a ring indexed from the oldest
+     * unacknowledged sequence number. Since rels are queued with
+     * consecutive sequence numbers, a cumulative ack only ever pops
+     * from the front. */
+    static class RelQueue {
+	private RMessage[] q = new RMessage[64];
+	private int h = 0, n = 0;
+
+	void add(RMessage msg) {
+	    if(n == q.length) {
+		RMessage[] nq = new RMessage[q.length * 2];
+		for(int i = 0; i < n; i++)
+		    nq[i] = q[(h + i) & (q.length - 1)];
+		q = nq;
+		h = 0;
+	    }
+	    q[(h + n++) & (q.length - 1)] = msg;
+	}
+
+	int size() {
+	    return(n);
+	}
+
+	RMessage get(int i) {
+	    if((i < 0) || (i >= n))
+		throw(new IndexOutOfBoundsException(String.format("%d >= %d", i, n)));
+	    return(q[(h + i) & (q.length - 1)]);
+	}
+
+	/* Drops every message up to and including seq, and returns
+	 * the last one dropped, or null if none were. */
+	RMessage ack(int seq) {
+	    RMessage last = null;
+	    while((n > 0) && (Utils.floormod(seq - q[h].seq, 65536) < 32768)) {
+		last = q[h];
+		q[h] = null;
+		h = (h + 1) & (q.length - 1);
+		n--;
+	    }
+	    return(last);
+	}
+    }
+
+    /* Object-frame acks. Objects are mapped to slots in parallel
+     * arrays through an open-addressed table keyed on object ID.
+     * What is due is kept in FIFOs that are only ever appended to in
+     * time order, so they never need sorting: objects not yet acked
+     * at all, acks due for periodic resending, and objects due to be
+     * dropped once nothing more has been received for them. Entries
+     * made stale by later events are recognized by slot generation
+     * or timestamp and skipped. */
+    static class ObjAcks {
+	static final long RESEND = 200, EXPIRE = 120;
+	private long[] ids = new long[64], recv = new long[64], sent = new long[64];
+	/* Slot generations are odd while the slot is in use. */
+	private int[] frames = new int[64], gens = new int[64];
+	private int[] free = new int[64];
+	private int nfree = 0, nslots = 0, count = 0;
+	private int[] table = new int[128];
+	private final Due fresh = new Due(), resend = new Due(), expire = new Due();
+
+	private static class Due {
+	    int[] slot = new int[64], gen = new int[64];
+	    long[] t = new long[64];
+	    int h = 0, n = 0;
+
+	    void add(int s, int g, long time) {
+		if(n == slot.length) {
+		    int[] ns = new int[n * 2], ng = new int[n * 2];
+		    long[] nt = new long[n * 2];
+		    for(int i = 0; i < n; i++) {
+			int o = (h + i) & (slot.length - 1);
+			ns[i] = slot[o]; ng[i] = gen[o]; nt[i] = t[o];
+		    }
+		    slot = ns; gen = ng; t = nt;
+		    h = 0;
+		}
+		int i = (h + n++) & (slot.length - 1);
+		slot[i] = s; gen[i] = g; t[i] = time;
+	    }
+
+	    boolean due(long now) {
+		return((n > 0) && (t[h] < now));
+	    }
+
+	    long next() {
+		return((n > 0) ? t[h] : Long.MAX_VALUE);
+	    }
+
+	    void pop() {
+		h = (h + 1) & (slot.length - 1);
+		n--;
+	    }
+	}
+
+	private static int hash(long id) {
+	    long h = id * 0x9e3779b97f4a7c15L;
+	    return((int)(h ^ (h >>> 32)));
+	}
+
+	private int find(long id) {
+	    int m = table.length - 1;
+	    for(int i = hash(id) & m; table[i] != 0; i = (i + 1) & m) {
+		if(ids[table[i] - 1] == id)
+		    return(table[i] - 1);
+	    }
+	    return(-1);
+	}
+
+	private void tput(int s) {
+	    int m = table.length - 1;
+	    int i = hash(ids[s]) & m;
+	    while(table[i] != 0)
+		i = (i + 1) & m;
+	    table[i] = s + 1;
+	}
+
+	private void tremove(int s) {
+	    int m = table.length - 1;
+	    int i = hash(ids[s]) & m;
+	    while(table[i] != s + 1)
+		i = (i + 1) & m;
+	    table[i] = 0;
+	    /* Shift back later members of the probe run that would
+	     * otherwise become unreachable. */
+	    for(int j = (i + 1) & m; table[j] != 0; j = (j + 1) & m) {
+		int k = hash(ids[table[j] - 1]) & m;
+		if((j > i) ? ((k <= i) || (k > j)) : ((k <= i) && (k > j))) {
+		    table[i] = table[j];
+		    table[j] = 0;
+		    i = j;
+		}
+	    }
+	}
+
+	private int alloc(long id) {
+	    int s;
+	    if(nfree > 0) {
+		s = free[--nfree];
+	    } else {
+		if(nslots == ids.length) {
+		    int nl = ids.length * 2;
+		    ids = Arrays.copyOf(ids, nl); recv = Arrays.copyOf(recv, nl); sent = Arrays.copyOf(sent, nl);
+		    frames = Arrays.copyOf(frames, nl); gens = Arrays.copyOf(gens, nl);
+		    free = Arrays.copyOf(free, nl);
+		}
+		s = nslots++;
+	    }
+	    ids[s] = id;
+	    if((count + 1) * 2 > table.length) {
+		table = new int[table.length * 2];
+		for(int o = 0; o < nslots; o++) {
+		    if((o != s) && ((gens[o] & 1) == 1))
+			tput(o);
+		}
+	    }
+	    gens[s]++;
+	    tput(s);
+	    count++;
+	    return(s);
+	}
+
+	private void release(int s) {
+	    tremove(s);
+	    gens[s]++;
+	    free[nfree++] = s;
+	    count--;
+	}
+
+	void received(long id, int frame, long now) {
+	    int s = find(id);
+	    if(s < 0) {
+		s = alloc(id);
+		frames[s] = frame;
+		sent[s] = 0;
+		fresh.add(s, gens[s], now);
+	    } else if(frame > frames[s]) {
+		frames[s] = frame;
+	    }
+	    recv[s] = now;
+	    expire.add(s, gens[s], now + EXPIRE);
+	}
+
+	private PMessage ack(List<PMessage> out, PMessage msg, int s, long now) {
+	    if((msg == null) || (msg.size() > 1000 - 8))
+		out.add(msg = new PMessage(MSG_OBJACK));
+	    msg.adduint32(ids[s]);
+	    msg.addint32(frames[s]);
+	    sent[s] = now;
+	    return(msg);
+	}
+
+	void collect(List<PMessage> out, long now) {
+	    PMessage msg = null;
+	    for(; expire.due(now); expire.pop()) {
+		int s = expire.slot[expire.h];
+		if((gens[s] == expire.gen[expire.h]) && (recv[s] + EXPIRE < now)) {
+		    msg = ack(out, msg, s, now);
+		    release(s);
+		}
+	    }
+	    for(; fresh.n > 0; fresh.pop()) {
+		int s = fresh.slot[fresh.h], g = fresh.gen[fresh.h];
+		if((gens[s] == g) && (sent[s] == 0)) {
+		    msg = ack(out, msg, s, now);
+		    resend.add(s, g, now + RESEND);
+		}
+	    }
+	    for(; resend.due(now); resend.pop()) {
+		int s = resend.slot[resend.h], g = resend.gen[resend.h];
+		if((gens[s] == g) && (now - sent[s] > RESEND)) {
+		    msg = ack(out, msg, s, now);
+		    resend.add(s, g, now + RESEND);
+		}
+	    }
+	}
+
+	/* The time at which collect() next has anything to do. */
+	long next() {
+	    if(fresh.n > 0)
+		return(Long.MIN_VALUE);
+	    return(Math.min(resend.next(), expire.next()));
+	}
+
+	int size() {
+	    return(count);
 	}
     }
 
@@ -267,12 +664,12 @@ public class Session implements Resource.Resolver {
 	}
 		
 	private void gotack(int seq) {
+	    long now = System.currentTimeMillis();
 	    synchronized(pending) {
-		for(ListIterator<RMessage> i = pending.listIterator(); i.hasNext(); ) {
-		    RMessage msg = i.next();
-		    if(msg.seq <= seq)
-			i.remove();
-		}
+		RMessage msg = pending.ack(seq);
+		/* Karn: only unambiguous samples */
+		if((msg != null) && (msg.seq == seq) && (msg.retx == 1))
+		    rtt.sample(now - msg.last);
 	    }
 	}
 		
@@ -283,15 +680,9 @@ public class Session implements Resource.Resolver {
 		long id = msg.uint32();
 		int frame = msg.int32();
 		oc.receive(fl, id, frame, msg);
+		long now = System.currentTimeMillis();
 		synchronized(objacks) {
-		    if(objacks.containsKey(id)) {
-			ObjAck a = objacks.get(id);
-			if(frame > a.frame)
-			    a.frame = frame;
-			a.recv = System.currentTimeMillis();
-		    } else {
-			objacks.put(id, new ObjAck(id, frame, System.currentTimeMillis()));
-		    }
+		    objacks.received(id, frame, now);
 		}
 	    }
 	    synchronized(sworker) {
@@ -300,6 +691,16 @@ public class Session implements Resource.Resolver {
 	}
 
 	private void handlerel(PMessage msg) {
+	    boolean queued = false;
+	    try {
+		queued = handlerel2(msg);
+	    } finally {
+		if(!queued)
+		    release(msg);
+	    }
+	}
+
+	private boolean handlerel2(PMessage msg) {
 	    if(msg.type == RMessage.RMSG_FRAGMENT) {
 		int head = msg.uint8();
 		if((head & 0x80) == 0) {
@@ -329,6 +730,7 @@ public class Session implements Resource.Resolver {
 		synchronized(uimsgs) {
 		    uimsgs.add(msg);
 		}
+		return(true);
 	    } else if(msg.type == RMessage.RMSG_MAPIV) {
 		glob.map.invalblob(msg);
 	    } else if(msg.type == RMessage.RMSG_GLOBLOB) {
@@ -362,6 +764,7 @@ public class Session implements Resource.Resolver {
 	    } else {
 		throw(new MessageException("Unknown rmsg type: " + msg.type, msg));
 	    }
+	    return(false);
 	}
 		
 	private void getrel(int seq, PMessage msg) {
@@ -382,86 +785,129 @@ public class Session implements Resource.Resolver {
 		    Session.this.notifyAll();
 		}
 	    } else if(Utils.floormod(seq - rseq, 65536) < 32768) {
-		waiting.put(seq, msg);
+		PMessage prev = waiting.put(seq, msg);
+		if(prev != null)
+		    release(prev);
+	    } else {
+		release(msg);
+	    }
+	}
+
+	private PMessage relmsg(PMessage pkt, PacketBuf buf, int type, int len) {
+	    if(buf == null)
+		return(new PMessage(type, pkt.bytes(len)));
+	    if(len > pkt.rt - pkt.rh)
+		throw(new Message.EOF("Required " + len + " bytes, got only " + (pkt.rt - pkt.rh)));
+	    PMessage ret = new PooledMessage(type, buf, pkt.rh, len);
+	    pkt.rh += len;
+	    return(ret);
+	}
+
+	private PMessage receive(PacketBuf buf) throws IOException {
+	    if(buf != null) {
+		if(ch.read(buf.bb) < 1)
+		    return(null);
+		if(cap != null)
+		    cap.record(NetLog.IN, buf.data, 0, buf.bb.position());
+		return(buf.packet());
 	    }
+	    DatagramPacket p = new DatagramPacket(new byte[65536], 65536);
+	    sk.receive(p);
+	    if(!p.getSocketAddress().equals(server))
+		return(null);
+	    if(cap != null)
+		cap.record(NetLog.IN, p.getData(), 0, p.getLength());
+	    return(new PMessage(p.getData()[0], p.getData(), 1, p.getLength() - 1));
 	}
 		
 	public void run() {
 	    try {
 		alive = true;
-		try {
-		    sk.setSoTimeout(1000);
-		} catch(SocketException e) {
-		    throw(new RuntimeException(e));
-		}
-		while(alive) {
-		    DatagramPacket p = new DatagramPacket(new byte[65536], 65536);
+		if(ch == null) {
 		    try {
-			sk.receive(p);
-		    } catch(java.nio.channels.ClosedByInterruptException e) {
-			/* Except apparently Sun's J2SE doesn't throw this when interrupted :P*/
-			break;
-		    } catch(SocketTimeoutException e) {
-			continue;
-		    } catch(IOException e) {
+			sk.setSoTimeout(1000);
+		    } catch(SocketException e) {
 			throw(new RuntimeException(e));
 		    }
-		    if(!p.getSocketAddress().equals(server))
-			continue;
-		    PMessage msg = new PMessage(p.getData()[0], p.getData(), 1, p.getLength() - 1);
-		    if(msg.type == MSG_SESS) {
-			if(state == "conn") {
-			    int error = msg.uint8();
-			    synchronized(Session.this) {
-				if(error == 0) {
-				    state = "";
-				} else {
-				    connfailed = error;
-				    Session.this.close();
-				}
-				Session.this.notifyAll();
-			    }
-			}
-		    }
-		    if(state != "conn") {
-			if(msg.type == MSG_SESS) {
-			} else if(msg.type == MSG_REL) {
-			    int seq = msg.uint16();
-			    while(!msg.eom()) {
-				int type = msg.uint8();
-				if((type & 0x80) != 0) {
-				    type &= 0x7f;
-				    int len = msg.uint16();
-				    getrel(seq, new PMessage(type, msg.bytes(len)));
-				} else {
-				    getrel(seq, new PMessage(type, msg.bytes()));
-				}
-				seq++;
-			    }
-			} else if(msg.type == MSG_ACK) {
-			    gotack(msg.uint16());
-			} else if(msg.type == MSG_MAPDATA) {
-			    glob.map.mapdata(msg);
-			} else if(msg.type == MSG_OBJDATA) {
-			    getobjdata(msg);
-			} else if(msg.type == MSG_CLOSE) {
-			    synchronized(Session.this) {
-				state = "fin";
-				Session.this.notifyAll();
-			    }
-			    Session.this.close();
-			} else {
-			    throw(new MessageException("Unknown message type: " + msg.type, msg));
+		}
+		while(alive) {
+		    PacketBuf buf = (ch == null)?null:rpool.get();
+		    try {
+			PMessage msg;
+			try {
+			    if((msg = receive(buf)) == null)
+				continue;
+			} catch(ClosedChannelException e) {
+			    /* Except apparently Sun's J2SE doesn't throw this when interrupted :P*/
+			    break;
+			} catch(SocketTimeoutException | PortUnreachableException e) {
+			    continue;
+			} catch(IOException e) {
+			    throw(new RuntimeException(e));
 			}
+			dispatch(msg, buf);
+		    } finally {
+			if(buf != null)
+			    buf.unref();
 		    }
 		}
 	    } finally {
+		if(cap != null)
+		    cap.close();
 		synchronized(Session.this) {
 		    state = "dead";
 		    Session.this.notifyAll();
 		}
 	    }
 	}
+
+	private void dispatch(PMessage msg, PacketBuf buf) {
+	    if(msg.type == MSG_SESS) {
+		if(state == "conn") {
+		    int error = msg.uint8();
+		    synchronized(Session.this) {
+			if(error == 0) {
+			    state = "";
+			} else {
+			    connfailed = error;
+			    Session.this.close();
+			}
+			Session.this.notifyAll();
+		    }
+		}
+	    }
+	    if(state != "conn") {
+		if(msg.type == MSG_SESS) {
+		} else if(msg.type == MSG_REL) {
+		    int seq = msg.uint16();
+		    while(!msg.eom()) {
+			int type = msg.uint8();
+			if((type & 0x80) != 0) {
+			    type &= 0x7f;
+			    int len = msg.uint16();
+			    getrel(seq, relmsg(msg, buf, type, len));
+			} else {
+			    getrel(seq, relmsg(msg, buf, type, msg.rt - msg.rh));
+			}
+			seq++;
+		    }
+		} else if(msg.type == MSG_ACK) {
+		    gotack(msg.uint16());
+		} else if(msg.type == MSG_MAPDATA) {
+		    glob.map.mapdata(msg);
+		} else if(msg.type == MSG_OBJDATA) {
+		    getobjdata(msg);
+		} else if(msg.type == MSG_CLOSE) {
+		    synchronized(Session.this) {
+			state = "fin";
+			Session.this.notifyAll();
+		    }
+		    Session.this.close();
+		} else {
+		    throw(new MessageException("Unknown message type: " + msg.type, msg));
+		}
+	    }
+	}
 		
 	public void interrupt() {
 	    alive = false;
@@ -509,16 +955,19 @@ public class Session implements Resource.Resolver {
 		    } else {
 			to = 5000;
 			synchronized(pending) {
-			    if(pending.size() > 0)
-				to = 60;
+			    for(int i = 0; i < pending.size(); i++) {
+				RMessage msg = pending.get(i);
+				to = Math.min(to, msg.last + rtt.txtime(msg.retx) + 1 - now);
+			    }
 			}
 			synchronized(objacks) {
-			    if((objacks.size() > 0) && (to > 120))
-				to = 200;
+			    long next = objacks.next();
+			    if(next != Long.MAX_VALUE)
+				to = Math.min(to, Math.max(next, now - 1) + 1 - now);
 			}
 			synchronized(this) {
 			    if(acktime > 0)
-				to = acktime + ackthresh - now;
+				to = Math.min(to, acktime + ackthresh - now);
 			    if(to > 0)
 				this.wait(to);
 			}
@@ -535,59 +984,47 @@ public class Session implements Resource.Resolver {
 			*/
 			synchronized(pending) {
 			    if(pending.size() > 0) {
-				for(RMessage msg : pending) {
-				    int txtime;
-				    if(msg.retx == 0)
-					txtime = 0;
-				    else if(msg.retx == 1)
-					txtime = 80;
-				    else if(msg.retx < 4)
-					txtime = 200;
-				    else if(msg.retx < 10)
-					txtime = 620;
-				    else
-					txtime = 2000;
-				    if(now - msg.last > txtime) { /* XXX */
-					msg.last = now;
-					msg.retx++;
-					PMessage rmsg = new PMessage(MSG_REL);
-					rmsg.adduint16(msg.seq);
-					rmsg.adduint8(msg.type);
-					rmsg.addbytes(msg.fin());
+				PMessage rmsg = null;
+				RMessage prev = null;
+				int plen = 0;
+				for(int i = 0; i < pending.size(); i++) {
+				    RMessage msg = pending.get(i);
+				    if(now - msg.last <= rtt.txtime(msg.retx))
+					continue;
+				    msg.last = now;
+				    msg.retx++;
+				    if((rmsg != null) && ((((prev.seq + 1) % 65536) != msg.seq) || (rmsg.size() + 3 + plen + 1 + msg.size() > 1000))) {
+					rmsg.adduint8(prev.type);
+					rmsg.addbytes(prev.fin());
 					sendmsg(rmsg);
+					rmsg = null;
 				    }
+				    if(rmsg == null) {
+					rmsg = new PMessage(MSG_REL);
+					rmsg.adduint16(msg.seq);
+				    } else {
+					rmsg.adduint8(prev.type | 0x80);
+					rmsg.adduint16(plen);
+					rmsg.addbytes(prev.fin());
+				    }
+				    prev = msg;
+				    plen = msg.size();
+				}
+				if(rmsg != null) {
+				    rmsg.adduint8(prev.type);
+				    rmsg.addbytes(prev.fin());
+				    sendmsg(rmsg);
 				}
 				beat = false;
 			    }
 			}
+			List<PMessage> oacks = new ArrayList<>();
 			synchronized(objacks) {
-			    PMessage msg = null;
-			    for(Iterator<ObjAck> i = objacks.values().iterator(); i.hasNext();) {
-				ObjAck a = i.next();
-				boolean send = false, del = false;
-				if(now - a.sent > 200)
-				    send = true;
-				if(now - a.recv > 120)
-				    send = del = true;
-				if(send) {
-				    if(msg == null) {
-					msg = new PMessage(MSG_OBJACK);
-				    } else if(msg.size() > 1000 - 8) {
-					sendmsg(msg);
-					beat = false;
-					msg = new PMessage(MSG_OBJACK);
-				    }
-				    msg.adduint32(a.id);
-				    msg.addint32(a.frame);
-				    a.sent = now;
-				}
-				if(del)
-				    i.remove();
-			    }
-			    if(msg != null) {
-				sendmsg(msg);
-				beat = false;
-			    }
+			    objacks.collect(oacks, now);
+			}
+			for(PMessage msg : oacks) {
+			    sendmsg(msg);
+			    beat = false;
 			}
 			synchronized(this) {
 			    if((acktime > 0) && (now - acktime >= ackthresh)) {
@@ -635,13 +1072,22 @@ public class Session implements Resource.Resolver {
 	this.username = username;
 	this.cookie = cookie;
 	this.args = args;
+	ResRecorder.start();
 	glob = new Glob(this);
 	character = new CharacterInfo();
 	try {
-	    sk = new DatagramSocket();
-	} catch(SocketException e) {
+	    if(Config.niorecv) {
+		ch = DatagramChannel.open();
+		ch.connect(server);
+		sk = ch.socket();
+	    } else {
+		sk = new DatagramSocket();
+	    }
+	} catch(IOException e) {
 	    throw(new RuntimeException(e));
 	}
+	if(Config.netcap != null)
+	    cap = NetLog.create(Config.netcap);
 	rworker = new RWorker();
 	rworker.start();
 	sworker = new SWorker();
@@ -662,6 +1108,7 @@ public class Session implements Resource.Resolver {
 
     public void close() {
 	sworker.interrupt();
+	ResRecorder.finish();
     }
 
     public synchronized boolean alive() {
@@ -680,6 +1127,14 @@ public class Session implements Resource.Resolver {
 	}
     }
 
+    public String stats() {
+	int npend;
+	synchronized(pending) {
+	    npend = pending.size();
+	}
+	return(String.format("%s, pend %d, rbuf %d/%d", rtt, npend, rpool.free(), rpool.allocated));
+    }
+
     public PMessage getuimsg() {
 	synchronized(uimsgs) {
 	    if(uimsgs.size() == 0)
@@ -696,8 +1151,13 @@ public class Session implements Resource.Resolver {
     }
 
     public void sendmsg(byte[] msg) {
+	if(cap != null)
+	    cap.record(NetLog.OUT, msg, 0, msg.length);
 	try {
-	    sk.send(new DatagramPacket(msg, msg.length, server));
+	    if(ch != null)
+		ch.write(ByteBuffer.wrap(msg));
+	    else
+		sk.send(new DatagramPacket(msg, msg.length, server));
 	} catch(IOException e) {
 	}
     }
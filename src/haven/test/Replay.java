@@ -0,0 +1,256 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+
+package haven.test;
+
+import haven.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/* Plays a session captured with haven.netcap back into a headless
+ * TestClient. A local socket stands in for the server: it answers
+ * the client's own handshake, since captures hold none of the
+ * recorded credentials, and then sends the recorded inbound
+ * datagrams, either at their original pace or accelerated. Rels are
+ * windowed against the client's acks and resent if lost, and map
+ * grids are requested on the client's behalf ahead of their data, so
+ * the result does not depend on what the client's UI would have
+ * asked for. */
+public class Replay extends BaseTest {
+    public static final int RELWND = 1024;
+    public final List<NetLog.Record> log;
+    public final double speed;
+    public final TestClient client;
+    private final DatagramSocket sk;
+    private final Map<Integer, Coord> mapids = new HashMap<>();
+    private final LinkedList<Rel> unacked = new LinkedList<>();
+    private SocketAddress peer;
+    private int ackseq = -1, relseq = -1;
+    private long lastack;
+
+    private static class Rel {
+	final int first, last;
+	final byte[] data;
+
+	Rel(byte[] data) {
+	    MessageBuf msg = new MessageBuf(data, 1, data.length - 1);
+	    int seq = msg.uint16(), n = 0;
+	    while(!msg.eom()) {
+		int type = msg.uint8();
+		if((type & 0x80) != 0)
+		    msg.skip(msg.uint16());
+		else
+		    msg.skip();
+		n++;
+	    }
+	    this.first = seq;
+	    this.last = (seq + Math.max(n, 1) - 1) % 65536;
+	    this.data = data;
+	}
+    }
+
+    public Replay(List<NetLog.Record> log, double speed, String user) throws IOException {
+	this.log = log;
+	this.speed = speed;
+	this.sk = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+	this.client = new TestClient(user);
+	client.addr = new InetSocketAddress(InetAddress.getLoopbackAddress(), sk.getLocalPort());
+	for(NetLog.Record rec : log) {
+	    if((rec.dir == NetLog.IN) && (rec.type() == Session.MSG_MAPDATA)) {
+		MessageBuf msg = new MessageBuf(rec.data, 1, rec.data.length - 1);
+		int pktid = msg.int32();
+		int off = msg.uint16();
+		msg.uint16();
+		if(off == 0)
+		    mapids.put(pktid, msg.coord());
+	    }
+	}
+    }
+
+    private static boolean seqle(int a, int b) {
+	return(Utils.floormod(b - a, 65536) < 32768);
+    }
+
+    private void send(byte[] data) throws IOException {
+	sk.send(new DatagramPacket(data, data.length, peer));
+    }
+
+    private void listen() {
+	byte[] buf = new byte[65536];
+	try {
+	    while(true) {
+		DatagramPacket p = new DatagramPacket(buf, buf.length);
+		sk.receive(p);
+		if((p.getLength() >= 3) && (buf[0] == Session.MSG_ACK)) {
+		    synchronized(unacked) {
+			ackseq = Utils.uint16d(buf, 1);
+			lastack = System.currentTimeMillis();
+			for(Iterator<Rel> i = unacked.iterator(); i.hasNext();) {
+			    if(seqle(i.next().last, ackseq))
+				i.remove();
+			}
+			unacked.notifyAll();
+		    }
+		}
+	    }
+	} catch(IOException e) {
+	    /* Socket closed at the end of the replay */
+	}
+    }
+
+    /* Must be called with unacked locked. */
+    private void resend() throws IOException {
+	for(Rel rel : unacked)
+	    send(rel.data);
+	lastack = System.currentTimeMillis();
+    }
+
+    private void awaitacks(int wnd) throws IOException, InterruptedException {
+	synchronized(unacked) {
+	    while(!unacked.isEmpty() && (Utils.floormod(relseq - ackseq, 65536) > wnd)) {
+		if(!client.alive())
+		    throw(new InterruptedException());
+		long now = System.currentTimeMillis();
+		if(now - lastack > 250)
+		    resend();
+		unacked.wait(250);
+	    }
+	}
+    }
+
+    private void handshake() throws IOException {
+	byte[] buf = new byte[65536];
+	while(true) {
+	    DatagramPacket p = new DatagramPacket(buf, buf.length);
+	    sk.receive(p);
+	    if((p.getLength() > 0) && (buf[0] == Session.MSG_SESS)) {
+		peer = p.getSocketAddress();
+		return;
+	    }
+	}
+    }
+
+    public void run() {
+	try {
+	    client.start();
+	    handshake();
+	    Thread listener = new HackThread(this::listen, "Replay listener");
+	    listener.setDaemon(true);
+	    listener.start();
+	    long t0 = -1, start = System.currentTimeMillis();
+	    long nbytes = 0;
+	    int npkts = 0;
+	    Collection<Coord> grids = new HashSet<>();
+	    for(NetLog.Record rec : log) {
+		if(rec.dir != NetLog.IN)
+		    continue;
+		if(t0 < 0)
+		    t0 = rec.time;
+		if(speed > 0) {
+		    long due = start + (long)((rec.time - t0) / speed);
+		    long now = System.currentTimeMillis();
+		    if(due > now)
+			Thread.sleep(due - now);
+		}
+		int type = rec.type();
+		if(type == Session.MSG_REL) {
+		    Rel rel = new Rel(rec.data);
+		    awaitacks(RELWND);
+		    synchronized(unacked) {
+			if(unacked.isEmpty())
+			    lastack = System.currentTimeMillis();
+			unacked.add(rel);
+			relseq = rel.last;
+		    }
+		} else if(type == Session.MSG_MAPDATA) {
+		    Coord gc = mapids.get(Utils.int32d(rec.data, 1));
+		    if((gc != null) && (client.sess != null)) {
+			client.sess.glob.map.request(gc);
+			grids.add(gc);
+		    }
+		} else if(type == Session.MSG_CLOSE) {
+		    break;
+		}
+		send(rec.data);
+		npkts++;
+		nbytes += rec.data.length;
+	    }
+	    awaitacks(0);
+	    double el = (System.currentTimeMillis() - start) / 1000.0;
+	    printf("Replayed %,d datagrams (%,d bytes) in %.2f s: %,.0f pkt/s, %,.0f B/s",
+		   npkts, nbytes, el, npkts / el, nbytes / el);
+	    if(client.sess != null) {
+		Glob glob = client.sess.glob;
+		int ngobs = 0, ngrids = 0;
+		synchronized(glob.oc) {
+		    for(Gob gob : glob.oc)
+			ngobs++;
+		}
+		for(Coord gc : grids) {
+		    try {
+			glob.map.getgrid(gc);
+			ngrids++;
+		    } catch(Loading l) {
+		    }
+		}
+		printf("Objects: %d, grids: %d/%d, loader: %s", ngobs, ngrids, grids.size(), glob.loader.stats());
+	    }
+	} catch(IOException e) {
+	    throw(new RuntimeException(e));
+	} catch(InterruptedException e) {
+	} finally {
+	    client.stop();
+	    sk.close();
+	}
+    }
+
+    public static List<NetLog.Record> read(File file) throws IOException {
+	List<NetLog.Record> ret = new ArrayList<>();
+	try(NetLog.Reader in = new NetLog.Reader(new FileInputStream(file))) {
+	    NetLog.Record rec;
+	    while((rec = in.next()) != null)
+		ret.add(rec);
+	}
+	return(ret);
+    }
+
+    public static void usage() {
+	System.err.println("usage: Replay CAPTURE [SPEED [USER]]");
+	System.err.println("       SPEED is a multiplier of the original pace, or 0 for no delay");
+    }
+
+    public static void main(String[] args) throws IOException {
+	if(args.length < 1) {
+	    usage();
+	    System.exit(1);
+	}
+	double speed = (args.length > 1) ? Double.parseDouble(args[1]) : 1.0;
+	String user = (args.length > 2) ? args[2] : "replay";
+	new Replay(read(new File(args[0])), speed, user).start();
+    }
+}